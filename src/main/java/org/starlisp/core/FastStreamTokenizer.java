@@ -2,6 +2,7 @@ package org.starlisp.core;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.util.Arrays;
 
 /**
  * Based on jdk's StreamTokenizer (a heavily stripped down version)
@@ -17,21 +18,23 @@ public class FastStreamTokenizer {
 
   private Reader reader = null;
 
-  char[] cb = new char[1];
+  /* The input is read a block at a time into cb; pos is the next character to be considered */
+  private char[] cb = new char[8192];
+  private int pos = 0;
+  private int limit = 0;
 
-  char buf[] = new char[1024];
-  int bufLimit = -1;
+  /* Where the current block starts in the input, and where the current line starts */
+  private long base = 0;
+  private long lineStart = 0;
+  private int line = 1;
 
-  /**
-   * The next character to be considered by the nextToken method.  May also
-   * be NEED_CHAR to indicate that a new character should be read, or SKIP_LF
-   * to indicate that a new character should be read and, if it is a '\n'
-   * character, it should be discarded and a second new character should be
-   * read.
-   */
-  private int peekc = NEED_CHAR;
+  /* Where the last token started, see lineno() and column() */
+  private int tokenLine = 1;
+  private int tokenColumn = 1;
 
-  private static final int NEED_CHAR = Integer.MAX_VALUE;
+  /* The characters of the last word or string token, growing as needed */
+  char buf[] = new char[1024];
+  int bufLimit = -1;
 
   private byte resetCType[] = new byte[256];
   private byte setCType[] = new byte[256];
@@ -272,111 +275,174 @@ public class FastStreamTokenizer {
       ctype[ch] = CT_QUOTE;
   }
 
-  /** Read the next character */
-  private int read() throws IOException {
-    int res = reader.read(cb, 0, 1);
-    return res >= 0 ? cb[0] : res;
+  /**
+   * Return the line number of the start of the last token read, counting
+   * from 1.
+   *
+   * @return  the line number of the last token.
+   */
+  public int lineno() {
+    return tokenLine;
+  }
+
+  /**
+   * Return the column of the start of the last token read, counting from 1.
+   *
+   * @return  the column of the last token.
+   */
+  public int column() {
+    return tokenColumn;
+  }
+
+  /**
+   * Read the next block of the input into cb.  Returns false at the end of
+   * the stream.
+   */
+  private boolean fill() throws IOException {
+    base += limit;
+    pos = 0;
+    limit = 0;
+    int n;
+    do {
+      n = reader.read(cb, 0, cb.length);
+    } while (n == 0);
+    if (n < 0)
+      return false;
+    limit = n;
+    return true;
+  }
+
+  /** Note a line ending at cb[p] */
+  private void newline(int p) {
+    line++;
+    lineStart = base + p + 1;
+  }
+
+  /** Append cb[from, to) to the token buffer */
+  private void append(int from, int to) {
+    int n = to - from;
+    if (bufLimit + n > buf.length)
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, bufLimit + n));
+    System.arraycopy(cb, from, buf, bufLimit, n);
+    bufLimit += n;
   }
 
   /**
    * Parses the next token from the input stream of this tokenizer.
    * The type of the next token is returned in the <code>ttype</code>
-   * field. Additional information about the token may be in the
-   * <code>nval</code> field or the <code>sval</code> field of this
-   * tokenizer.
+   * field. The characters of word and string tokens are in
+   * <code>buf</code> up to <code>bufLimit</code>.
    * <p>
-   * Typical clients of this
-   * class first set up the syntax tables and then sit in a loop
-   * calling nextToken to parse successive tokens until TT_EOF
-   * is returned.
+   * Runs of whitespace, word, string and comment characters are scanned
+   * within the block of input read last, so characters are only read from
+   * the underlying reader a block at a time.
    *
    * @return     the value of the <code>ttype</code> field.
    * @exception  IOException  if an I/O error occurs.
-   * @see        java.io.StreamTokenizer#nval
-   * @see        java.io.StreamTokenizer#sval
    * @see        java.io.StreamTokenizer#ttype
    */
   public int nextToken() throws IOException {
-    int c = peekc;
-    if (c < 0 || c == NEED_CHAR) {
-      c = read();
-      if (c < 0)
-        return ttype = TT_EOF;
-    }
-    ttype = c;              /* Just to be safe */
-
-    /* Set peekc so that the next invocation of nextToken will read
-    * another character unless peekc is reset in this invocation
-    */
-    peekc = NEED_CHAR;
-
-    int chtype = c < 256 ? ctype[c] : CT_ALPHA;
-    while ((chtype & CT_WHITESPACE) != 0) {
-/*
-      if (c == '\r') {
-        c = read();
+    final byte[] ct = ctype;
+    int c;
+    int chtype;
+
+    for (;;) {
+      /* skip whitespace */
+      int p = pos;
+      for (;;) {
+        if (p == limit) {
+          if (!fill())
+            return ttype = TT_EOF;
+          p = 0;
+        }
+        c = cb[p];
+        chtype = c < 256 ? ct[c] : CT_ALPHA;
+        if ((chtype & CT_WHITESPACE) == 0)
+          break;
         if (c == '\n')
-          c = read();
-      } else {
-        c = read();
+          newline(p);
+        p++;
+      }
+      pos = p;
+      if ((chtype & CT_COMMENT) == 0)
+        break;
+
+      /* skip the comment, leaving the line terminator to be read as whitespace */
+      for (;;) {
+        if (p == limit) {
+          if (!fill()) {
+            pos = 0;
+            return ttype = TT_EOF;
+          }
+          p = 0;
+        }
+        c = cb[p];
+        if (c == '\n' || c == '\r')
+          break;
+        p++;
       }
-*/
-      c = read();
-      if (c < 0)
-        return ttype = TT_EOF;
-      chtype = c < 256 ? ctype[c] : CT_ALPHA;
+      pos = p;
     }
 
+    tokenLine = line;
+    tokenColumn = (int) (base + pos - lineStart) + 1;
+
     if ((chtype & CT_ALPHA) != 0) {
       bufLimit = 0;
-      do {
-/*
-        if (i >= buf.length) {
-          buf = Arrays.copyOf(buf, buf.length * 2);
+      int p = pos;
+      for (;;) {
+        int from = p;
+        while (p < limit) {
+          c = cb[p];
+          if (c < 256 && (ct[c] & CT_ALPHA) == 0)
+            break;
+          p++;
         }
-*/
-        buf[bufLimit++] = (char) c;
-        c = read();
-        chtype = c < 0 ? CT_WHITESPACE : c < 256 ? ctype[c] : CT_ALPHA;
-      } while ((chtype & (CT_ALPHA)) != 0);
-      peekc = c;
+        append(from, p);
+        if (p < limit)
+          break;
+        if (!fill()) {
+          p = 0;
+          break;
+        }
+        p = 0;
+      }
+      pos = p;
       return ttype = TT_WORD;
     }
 
+    pos++;
+
     if ((chtype & CT_QUOTE) != 0) {
       ttype = c;
       bufLimit = 0;
-      /* Invariants (because \Octal needs a lookahead):
-      *   (i)  c contains char value
-      *   (ii) d contains the lookahead
-      */
-      int d = read();
-//      while (d >= 0 && d != ttype && d != '\n' && d != '\r') {
-      while (d >= 0 && d != ttype) {
-/*
-        if (i >= buf.length) {
-          buf = Arrays.copyOf(buf, buf.length * 2);
+      int p = pos;
+      for (;;) {
+        int from = p;
+        while (p < limit) {
+          int d = cb[p];
+          if (d == ttype)
+            break;
+          if (d == '\n')
+            newline(p);
+          p++;
+        }
+        append(from, p);
+        if (p < limit) {
+          /* skip the closing quote */
+          pos = p + 1;
+          return ttype;
+        }
+        if (!fill()) {
+          pos = 0;
+          return ttype;
         }
-*/
-        buf[bufLimit++] = (char)d;
-        d = read();
+        p = 0;
       }
-
-      /* If we broke out of the loop because we found a matching quote
-      * character then arrange to read a new character next time
-      * around; otherwise, save the character.
-      */
-      peekc = (d == ttype) ? NEED_CHAR : d;
-
-      return ttype;
-    }
-
-    if ((chtype & CT_COMMENT) != 0) {
-      while ((c = read()) != '\n' && c != '\r' && c >= 0);
-      peekc = c;
-      return nextToken();
     }
 
+    if (c == '\n')
+      newline(pos - 1);
     return ttype = c;
   }
 }
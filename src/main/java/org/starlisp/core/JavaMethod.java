@@ -5,19 +5,20 @@ import java.lang.reflect.Modifier;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public final class JavaMethod extends LispFn {
 
   // FIXME: ARRGGGHH I SEEM TO PREFER OBJECT OVER DOUBLE SOMEOFTHEMTIMES... is this bad? Is it instead maybe what we want?
   //        fix is probably in either accept (more probable) or argumentMoreSpecificThan
 
-  // Maps argument classes to methods (this-object considered first argument in the list)
-  private final static Map<String, Map<List<Class>, Monstructor>> methodMap = new HashMap<String, Map<List<Class>, Monstructor>>();
+  // Maps argument classes to methods (this-object considered first argument in the list), shared by every Runtime
+  private final static ConcurrentMap<String, Map<List<Class>, Monstructor>> methodMap = new ConcurrentHashMap<String, Map<List<Class>, Monstructor>>();
   private final Object obj;
   private final Monstructor[] methods;
 
@@ -26,7 +27,7 @@ public final class JavaMethod extends LispFn {
     this.methods = methods;
     this.obj = obj;
     if (!methodMap.containsKey(name)) {
-      methodMap.put(name, new HashMap<List<Class>, Monstructor>());
+      methodMap.putIfAbsent(name, new ConcurrentHashMap<List<Class>, Monstructor>());
     }
   }
 
@@ -4,12 +4,14 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public final class JavaObject extends LispFn {
-  private final static Map<Class, Map<Symbol, Monstructor[]>> methodMap = new HashMap<Class, Map<Symbol, Monstructor[]>>();
-  private final static Symbol newInstance = RootEnvironment.intern("newInstance");
+  // shared by every Runtime, the methods found are the same for all of them
+  private final static ConcurrentMap<Class, Map<Symbol, Monstructor[]>> methodMap = new ConcurrentHashMap<Class, Map<Symbol, Monstructor[]>>();
+  private final static Symbol newInstance = Symbol$.MODULE$.newInstance();
   private final Class klas;
   private final Object obj;
 
@@ -21,7 +23,7 @@ public final class JavaObject extends LispFn {
     klas = obj.getClass();
     Class storeKlas = (klas == Class.class) ? (Class) obj : klas; // We need to use obj as key when it is an instance of Class
     if (!methodMap.containsKey(storeKlas)) {
-      methodMap.put(storeKlas, new HashMap<Symbol, Monstructor[]>());
+      methodMap.putIfAbsent(storeKlas, new ConcurrentHashMap<Symbol, Monstructor[]>());
     }
   }
 
@@ -3,19 +3,27 @@ package org.starlisp
 import core._
 
 object REPL extends App {
-  val runtime = Runtime.createAndBootstrap
-  val out = Symbol.standardOutput.value.asInstanceOf[LispOutputStream]
-  val in = runtime.standardInput.value.asInstanceOf[LispInputStream]
-  out.write("Hello and welcome to starlisp!\n")
-  while(!runtime.stopped) {
-    try {
-      while(!runtime.stopped) {
-        out.write("\n>> ")
-        runtime.prin1(runtime.eval(runtime.read(in)), out)
+  // --image file starts from a boot image saved by save-image instead of evaluating bootstrap.ljsp
+  val image = args.indexOf("--image")
+  val runtime = if (image >= 0 && image + 1 < args.length) Runtime.createFromImage(args(image + 1)) else Runtime.createAndBootstrap
+  // --server port serves /eval over HTTP with runtimes cloned from this one instead of reading stdin
+  val server = args.indexOf("--server")
+  if (server >= 0 && server + 1 < args.length) {
+    new EvalServer(args(server + 1).toInt, template = new RuntimeTemplate(runtime)).start()
+  } else {
+    val out = Symbol.standardOutput.value.asInstanceOf[LispOutputStream]
+    val in = runtime.standardInput.value.asInstanceOf[LispInputStream]
+    out.write("Hello and welcome to starlisp!\n")
+    while(!runtime.stopped) {
+      try {
+        while(!runtime.stopped) {
+          out.write("\n>> ")
+          runtime.prin1(runtime.eval(runtime.read(in)), out)
+        }
+      } catch {
+        case e: LispException => println(e.getMessage)
+        case e: Exception => e.printStackTrace;
       }
-    } catch {
-      case e: LispException => println(e.getMessage)
-      case e: Exception => e.printStackTrace;
     }
   }
-}
\ No newline at end of file
+}
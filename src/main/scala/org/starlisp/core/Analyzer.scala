@@ -0,0 +1,388 @@
+package org.starlisp.core
+
+/*
+ * Forms are analyzed once into a tree of executable nodes which is then re-run on every later
+ * evaluation, instead of re-dispatching on the shape of the list each time.
+ *
+ * Trees analyzed without a lexical context (top-level forms, lambda bodies) are cached on the Cell
+ * they came from; everything else lives inside its parent node.  Nodes hold no Runtime specific
+ * state, so a tree can be shared by every runtime evaluating the same list structure.
+ *
+ * Calls in tail position of a lambda body (through if and macro expansions) don't apply their
+ * lambda, they return a TailCall which the enclosing Runtime.run loop continues with.  So tail
+ * recursion runs in constant stack space.
+ */
+abstract class Node {
+  def eval(runtime: Runtime, env: Environment): LispObject
+
+  protected def error(msg: String): Nothing = throw new LispException(Symbol.internalError, msg)
+}
+
+final class ConstNode(value: LispObject) extends Node {
+  def eval(runtime: Runtime, env: Environment) = value
+}
+
+// A parameter of a lexically enclosing lambda, in slot index of the frame depth frames up from the current one
+final class LocalRef(symbol: Symbol, depth: Int, index: Int) extends Node {
+  def eval(runtime: Runtime, env: Environment): LispObject = {
+    // a symbol carrying its own value (t, builtins) shadows bindings, as in Runtime.lookup
+    if (symbol.value ne null) return symbol.value
+    var frame = env.asInstanceOf[Frame]
+    var i = depth
+    while (i > 0) {
+      frame = frame.parent.asInstanceOf[Frame]
+      i -= 1
+    }
+    frame.values(index)
+  }
+}
+
+// A binding a GlobalRef resolved to, and the runtime's BindingVersion and its value it was resolved at
+final class ResolvedBinding(val binding: Symbol, val bindings: BindingVersion, val version: Int)
+
+/*
+ * A reference to a name no enclosing lambda binds.  Unless some lambda has the name as a parameter (and so
+ * could bind it dynamically) the binding found is cached, and read directly while no other binding that
+ * could hide it has appeared.
+ */
+final class GlobalRef(symbol: Symbol) extends Node {
+
+  private var resolved: ResolvedBinding = null
+
+  def eval(runtime: Runtime, env: Environment): LispObject = {
+    // a symbol carrying its own value (t, builtins) shadows bindings, as in Runtime.lookup
+    if (symbol.value ne null) return symbol.value
+    val cached = resolved
+    val bindings = runtime.bindingVersion
+    val version = bindings.get
+    if ((cached ne null) && (cached.bindings eq bindings) && cached.version == version) return cached.binding.value
+    val value = runtime.lookup(symbol, env)
+    if (!bindings.isParameter(symbol.name)) {
+      env.find(symbol.name) match {
+        case Some(binding) => resolved = new ResolvedBinding(binding, bindings, version)
+        case None =>
+      }
+    }
+    value
+  }
+}
+
+// A pending application of a lambda, only ever returned to Runtime.run
+final class TailCall(val fn: LambdaNode, val args: Array[LispObject]) extends LispObject
+
+final class IfNode(test: Node, consequent: Node, alternative: Node) extends Node {
+  def eval(runtime: Runtime, env: Environment) = {
+    if (test.eval(runtime, env) ne null) consequent.eval(runtime, env) else alternative.eval(runtime, env)
+  }
+}
+
+/*
+ * The analyzed form of (lambda params . body), and of (macro params . body) which is applied the
+ * same way during expansion.  Evaluating the node yields the form itself, as the lambda procedure does.
+ */
+final class LambdaNode(val form: Cell, outer: Scope) extends Node {
+
+  private val (required, rest) = Analyzer.parameters(form.cdr match {
+    case cell: Cell => cell.car
+    case _ => null
+  })
+
+  val scope = new Scope(rest match {
+    case null => required
+    case sym => required :+ sym
+  }, outer)
+
+  // the runtime whose parameters the names were last registered with
+  private var registered: BindingVersion = null
+
+  // Makes the names parameters of the runtime before it binds them in a frame of this lambda
+  def register(bindings: BindingVersion) {
+    if (registered ne bindings) {
+      scope.names.foreach(name => if (name ne null) bindings.parameter(name.name))
+      registered = bindings
+    }
+  }
+
+  @volatile private var analyzedBody: Array[Node] = null
+
+  def body: Array[Node] = {
+    var nodes = analyzedBody
+    if (nodes eq null) {
+      nodes = Analyzer.analyzeBody(form.cdr match {
+        case cell: Cell => cell.rest
+        case _ => null
+      }, scope)
+      analyzedBody = nodes
+    }
+    nodes
+  }
+
+  // The frame of an invocation with args, which become its slots when there is no rest parameter
+  def frame(args: Array[LispObject], outer: Environment): Frame = {
+    if (args.length < required.length) error("Too few args: " + LispObject.toStringOrNil(Cell.list(args)))
+    if (rest eq null) {
+      if (args.length > required.length) error("Too many args: " + LispObject.toStringOrNil(Cell.list(args)))
+      new Frame(scope.names, args, outer)
+    } else {
+      val values = new Array[LispObject](required.length + 1)
+      System.arraycopy(args, 0, values, 0, required.length)
+      values(required.length) = Cell.list(args, required.length)
+      new Frame(scope.names, values, outer)
+    }
+  }
+
+  def eval(runtime: Runtime, env: Environment) = form
+}
+
+// ((lambda params . body) args...) - the lambda is analyzed in the scope of the call site
+final class LambdaCallNode(lambda: LambdaNode, args: Array[Node], tail: Boolean) extends Node {
+  def eval(runtime: Runtime, env: Environment) = {
+    if (tail) runtime.tailCall(lambda, args, env) else runtime.apply(lambda, args, env)
+  }
+}
+
+// A function value a CallNode has called, with its analyzed lambda
+final class CallTarget(val fn: Cell, val lambda: LambdaNode)
+
+// The analyzed expansion of a macro call, and the macro that expanded it
+final class Expansion(val expander: Cell, val node: Node)
+
+/*
+ * A call whose operator is only known at run time: a global or local function, a builtin procedure or
+ * a macro.  The lambdas called are remembered (up to CallNode.targets of them) so calling one of them
+ * again skips classifying the function value; rebinding the operator gives a new value.  The analyzed
+ * expansion of a macro call is kept for as long as the operator is bound to the same macro, so
+ * rebinding the macro expands the call again.  Macros that still displace their call site turn this
+ * node into a plain delegate for the analyzed form.  Futures may evaluate the node on several threads
+ * at once, so what it learns is only ever replaced by whole objects.
+ */
+final class CallNode(form: Cell, operator: Node, scope: Scope, tail: Boolean) extends Node {
+
+  private val car = form.car
+  private val cdr = form.cdr
+  @volatile private var args: Array[Node] = null
+  @volatile private var displaced: Node = null
+  @volatile private var expansion: Expansion = null
+  @volatile private var targets = new Array[CallTarget](0)
+
+  private def arguments: Array[Node] = {
+    var nodes = args
+    if (nodes eq null) {
+      nodes = Analyzer.analyzeArgs(form.rest, scope)
+      args = nodes
+    }
+    nodes
+  }
+
+  def eval(runtime: Runtime, env: Environment): LispObject = {
+    if (displaced ne null) return displaced.eval(runtime, env)
+    val value = operator.eval(runtime, env)
+    val cached = targets
+    var i = 0
+    while (i < cached.length) {
+      val target = cached(i)
+      if (target.fn eq value) return call(runtime, target.lambda, env)
+      i += 1
+    }
+    value match {
+      case fn: Cell => {
+        if (fn.car eq Symbol.lambda) {
+          val lambda = Analyzer.lambda(fn)
+          if (cached.length < CallNode.targets) targets = cached :+ new CallTarget(fn, lambda)
+          call(runtime, lambda, env)
+        } else if (fn.car eq Symbol.`macro`) {
+          val cachedExpansion = expansion
+          if ((cachedExpansion ne null) && (cachedExpansion.expander eq fn)) {
+            runtime.expansionHits.incrementAndGet()
+            return cachedExpansion.node.eval(runtime, env)
+          }
+          runtime.expansionMisses.incrementAndGet()
+          val expanded = runtime.expand(Analyzer.lambda(fn), form, env)
+          if ((form.car ne car) || (form.cdr ne cdr)) {
+            val node = Analyzer.analyze(form, scope, tail)
+            displaced = node
+            node.eval(runtime, env)
+          } else {
+            val node = Analyzer.analyze(expanded, scope, tail)
+            expansion = new Expansion(fn, node)
+            node.eval(runtime, env)
+          }
+        } else {
+          error("%s is not a function.".format(form.car.toString))
+        }
+      }
+      case subr: Subr => {
+        val args = arguments
+        args.length match {
+          case 0 => subr.call0(env)
+          case 1 => subr.call1(env, args(0).eval(runtime, env))
+          case 2 => subr.call2(env, args(0).eval(runtime, env), args(1).eval(runtime, env))
+          case 3 => subr.call3(env, args(0).eval(runtime, env), args(1).eval(runtime, env), args(2).eval(runtime, env))
+          case 4 => subr.call4(env, args(0).eval(runtime, env), args(1).eval(runtime, env), args(2).eval(runtime, env),
+                               args(3).eval(runtime, env))
+          case n => {
+            val values = new Array[LispObject](n)
+            var i = 0
+            while (i < n) {
+              values(i) = args(i).eval(runtime, env)
+              i += 1
+            }
+            subr.callN(env, values)
+          }
+        }
+      }
+      case proc: Procedure => proc(env, form, runtime)
+      case _ => {
+        error("EVAL: %s is not a function name; try using a symbol instead. EXPR: %s".format(
+              String.valueOf(form.car),
+              LispObject.toStringOrNil(form)))
+      }
+    }
+  }
+
+  private def call(runtime: Runtime, lambda: LambdaNode, env: Environment): LispObject = {
+    if (tail) runtime.tailCall(lambda, arguments, env) else runtime.apply(lambda, arguments, env)
+  }
+}
+
+object CallNode {
+  val targets = 4
+}
+
+// The parameter names bound by a lambda, and the scope of the lambda enclosing it (if any)
+final class Scope(val names: Array[Symbol], val parent: Scope) {
+  // the slot of symbol in frames of this scope, see Frame.indexOf
+  def indexOf(symbol: Symbol): Int = {
+    var i = names.length - 1
+    while (i >= 0) {
+      if ((names(i) ne null) && names(i).name == symbol.name) return i
+      i -= 1
+    }
+    -1
+  }
+
+  def binds(symbol: Symbol) = indexOf(symbol) >= 0
+}
+
+object Analyzer {
+
+  private val nilName = "nil"
+
+  private[core] val quoteProc = Symbol.quote.value
+  private[core] val ifProc = Symbol._if.value
+  private[core] val lambdaProc = Symbol.lambda.value
+  private[core] val macroProc = Symbol.`macro`.value
+
+  // The analyzed form of a top-level form, cached on its Cell
+  def form(cell: Cell): Node = {
+    var node = cell.node
+    if (node eq null) {
+      node = analyze(cell, null, false)
+      cell.node = node
+    }
+    node
+  }
+
+  // The analyzed lambda (or macro) bound as a function value, cached on its Cell
+  def lambda(cell: Cell): LambdaNode = {
+    cell.node match {
+      case fn: LambdaNode if fn.form eq cell => fn
+      case _ => {
+        val fn = new LambdaNode(cell, null)
+        cell.node = fn
+        fn
+      }
+    }
+  }
+
+  def analyze(obj: LispObject, scope: Scope, tail: Boolean): Node = {
+    obj match {
+      case symbol: Symbol => {
+        var s = scope
+        var depth = 0
+        while (s ne null) {
+          val index = s.indexOf(symbol)
+          if (index >= 0) return new LocalRef(symbol, depth, index)
+          s = s.parent
+          depth += 1
+        }
+        if (symbol.name == nilName) new ConstNode(null) else new GlobalRef(symbol)
+      }
+      case cell: Cell => analyzeForm(cell, scope, tail)
+      case _ => new ConstNode(obj)
+    }
+  }
+
+  private[core] def special(obj: LispObject, sym: Symbol, proc: LispObject) = (obj eq sym) && (sym.value eq proc)
+
+  private def analyzeForm(cell: Cell, scope: Scope, tail: Boolean): Node = {
+    val op = cell.car
+    if (special(op, Symbol.quote, quoteProc)) {
+      new ConstNode(nth(cell, 1))
+    } else if (special(op, Symbol._if, ifProc)) {
+      new IfNode(analyze(nth(cell, 1), scope, false), analyze(nth(cell, 2), scope, tail), analyze(nth(cell, 3), scope, tail))
+    } else if (special(op, Symbol.lambda, lambdaProc) || special(op, Symbol.`macro`, macroProc)) {
+      new ConstNode(cell)
+    } else {
+      op match {
+        case fn: Cell if special(fn.car, Symbol.lambda, lambdaProc) =>
+          new LambdaCallNode(new LambdaNode(fn, scope), analyzeArgs(cell.cdr, scope), tail)
+        case _ => new CallNode(cell, analyze(op, scope, false), scope, tail)
+      }
+    }
+  }
+
+  def analyzeArgs(list: LispObject, scope: Scope): Array[Node] = {
+    val forms = list match {
+      case cell: Cell => cell.toArray
+      case _ => new Array[LispObject](0)
+    }
+    forms.map(analyze(_, scope, false))
+  }
+
+  // The last form of a body is in tail position
+  def analyzeBody(list: LispObject, scope: Scope): Array[Node] = {
+    val forms = list match {
+      case cell: Cell => cell.toArray
+      case _ => new Array[LispObject](0)
+    }
+    Array.tabulate(forms.length)(i => analyze(forms(i), scope, i == forms.length - 1))
+  }
+
+  // Splits a lambda list into its required parameters and its rest parameter (null when absent)
+  def parameters(params: LispObject): (Array[Symbol], Symbol) = {
+    params match {
+      case null => (new Array[Symbol](0), null)
+      case sym: Symbol => if (sym.name == nilName) (new Array[Symbol](0), null) else (new Array[Symbol](0), sym)
+      case cell: Cell => {
+        val required = new collection.mutable.ArrayBuffer[Symbol]
+        var c: LispObject = cell
+        while (c.isInstanceOf[Cell]) {
+          required += (c.asInstanceOf[Cell].car match {
+            case sym: Symbol => sym
+            case _ => null
+          })
+          c = c.asInstanceOf[Cell].cdr
+        }
+        (required.toArray, c match {
+          case sym: Symbol => sym
+          case _ => null
+        })
+      }
+      case _ => (new Array[Symbol](0), null)
+    }
+  }
+
+  private[core] def nth(cell: Cell, n: Int): LispObject = {
+    var c: LispObject = cell
+    var i = n
+    while (i > 0 && c.isInstanceOf[Cell]) {
+      c = c.asInstanceOf[Cell].cdr
+      i -= 1
+    }
+    c match {
+      case c: Cell => c.car
+      case _ => null
+    }
+  }
+}
@@ -0,0 +1,566 @@
+package org.starlisp.core
+
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util
+
+/*
+ * A compact binary encoding of Lisp data.  Every object starts with a tag byte, small fixnums are
+ * nothing but their tag.  Conses, strings, arrays, hash tables and uninterned symbols are numbered in
+ * the order they are written and written once, later occurrences refer back to them, so shared and
+ * circular structure survives.  Symbol names are written once per stream and referred to by number
+ * after that.
+ */
+object BinaryFormat {
+  final val NilTag = 0
+  final val RefTag = 1
+  final val ListTag = 2 // n, the cars of n conses linked by their cdrs, the cdr of the last
+  final val FixnumTag = 3
+  final val FlonumTag = 4
+  final val DecimalTag = 5 // a flonum that is an integer divided by a power of ten below 10^8
+  final val BigIntTag = 6
+  final val BigDecimalTag = 7
+  final val CharTag = 8
+  final val StringTag = 9
+  final val VectorTag = 10
+  final val FixnumArrayTag = 11
+  final val FlonumArrayTag = 12
+  final val ByteArrayTag = 13
+  final val HashTableTag = 14
+  final val ProcedureTag = 15
+
+  // symbol tags, by how a symbol is found again: by name in the reading environment, by identity, or written whole
+  final val NamedSymbol = 16
+  final val Keyword = 17
+  final val RootSymbol = 18
+  final val Uninterned = 19
+
+  final val CompiledTag = 20 // numbered, the symbol and lambda of a compiled procedure; only subclasses write it
+
+  // tags from SmallFixnumTag on are the fixnums from MinSmallFixnum on
+  final val SmallFixnumTag = 32
+  final val MinSmallFixnum = -32
+  final val MaxSmallFixnum = 255 - SmallFixnumTag + MinSmallFixnum
+
+  private[core] final val MaxExactLong = 9007199254740992.0 // 2^53
+  private[core] val decimalScales = Array(1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7)
+
+  private[core] def unwritable(obj: LispObject): Nothing =
+    throw new LispException(Symbol.internalError, "Can't write %s in binary.".format(obj))
+
+  private[core] def malformed(msg: String): Nothing =
+    throw new LispException(Symbol.internalError, "Malformed binary data: " + msg)
+}
+
+
+/*
+ * Writes objects in the binary format to out, through a buffer of its own.  Symbols other than the
+ * shared ones are written by name and procedures only as the builtins of runtime they are; subclasses
+ * decide otherwise.
+ */
+class BinaryWriter(runtime: Runtime, out: OutputStream) {
+  import BinaryFormat._
+
+  private val objects = new IdentityTable
+  private val names = new util.HashMap[String, Integer]
+  // the name number and kind of the symbols written by name so far, the kind in the low two bits
+  private val symbols = new util.IdentityHashMap[Symbol, Integer]
+
+  private val buf = new Array[Byte](8192)
+  private var pos = 0
+
+  protected def symbolKind(sym: Symbol): Int = {
+    if (Symbol.isKeyword(sym)) Keyword
+    else if (Symbol.isShared(sym)) RootSymbol
+    else NamedSymbol
+  }
+
+  private def drain() {
+    out.write(buf, 0, pos)
+    pos = 0
+  }
+
+  private def room(n: Int) {
+    if (pos + n > buf.length) drain()
+  }
+
+  protected def writeByte(b: Int) {
+    if (pos == buf.length) drain()
+    buf(pos) = b.toByte
+    pos += 1
+  }
+
+  private def writeBytes(bytes: Array[Byte]) {
+    drain()
+    out.write(bytes)
+  }
+
+  private def writeInt(v: Int) {
+    room(4)
+    buf(pos) = (v >>> 24).toByte
+    buf(pos + 1) = (v >>> 16).toByte
+    buf(pos + 2) = (v >>> 8).toByte
+    buf(pos + 3) = v.toByte
+    pos += 4
+  }
+
+  private def writeLong(v: Long) {
+    writeInt((v >>> 32).toInt)
+    writeInt(v.toInt)
+  }
+
+  def writeVarint(n: Long) {
+    room(10)
+    var v = n
+    while ((v & ~0x7FL) != 0) {
+      buf(pos) = ((v & 0x7F) | 0x80).toByte
+      pos += 1
+      v >>>= 7
+    }
+    buf(pos) = v.toByte
+    pos += 1
+  }
+
+  def writeName(name: String) {
+    val id = names.get(name)
+    if (id ne null) {
+      writeVarint(id.intValue)
+    } else {
+      writeVarint(names.size)
+      names.put(name, names.size)
+      writeChars(name)
+    }
+  }
+
+  // ASCII chars take a byte each, the rest a varint
+  private def writeChars(s: String) {
+    writeVarint(s.length)
+    var i = 0
+    while (i < s.length) {
+      val ch = s.charAt(i)
+      if (ch < 0x80) writeByte(ch) else writeVarint(ch)
+      i += 1
+    }
+  }
+
+  // writes a reference if obj was written before, registers it otherwise
+  protected def shared(obj: AnyRef): Boolean = {
+    val id = objects.add(obj)
+    if (id >= 0) {
+      writeByte(RefTag)
+      writeVarint(id)
+      true
+    } else {
+      false
+    }
+  }
+
+  def write(obj: LispObject) {
+    obj match {
+      case null => writeByte(NilTag)
+      case cell: Cell => writeList(cell)
+      case sym: Symbol => writeSymbol(sym)
+      case n: LispFixnum => {
+        if (n.n >= MinSmallFixnum && n.n <= MaxSmallFixnum) {
+          writeByte((n.n - MinSmallFixnum).toInt + SmallFixnumTag)
+        } else {
+          writeByte(FixnumTag)
+          writeVarint((n.n << 1) ^ (n.n >> 63))
+        }
+      }
+      case n: LispFlonum => writeFlonum(n.n)
+      case n: LispBigInt => {
+        writeByte(BigIntTag)
+        val bytes = n.n.toByteArray
+        writeVarint(bytes.length)
+        writeBytes(bytes)
+      }
+      case n: LispBigDecimal => {
+        writeByte(BigDecimalTag)
+        writeChars(n.n.toString)
+      }
+      case ch: LispChar => {
+        writeByte(CharTag)
+        writeVarint(ch.ch)
+      }
+      case proc: Procedure => writeProcedure(proc)
+      case _ => if (!shared(obj)) obj match {
+        case s: LispString => {
+          writeByte(StringTag)
+          writeChars(s.toJavaString)
+        }
+        case a: LispFixnumArray => {
+          writeByte(FixnumArrayTag)
+          writeVarint(a.ar.length)
+          a.ar.foreach(writeLong)
+        }
+        case a: LispFlonumArray => {
+          writeByte(FlonumArrayTag)
+          writeVarint(a.ar.length)
+          a.ar.foreach(d => writeLong(java.lang.Double.doubleToRawLongBits(d)))
+        }
+        case a: LispByteArray => {
+          writeByte(ByteArrayTag)
+          writeVarint(a.ar.length)
+          writeBytes(a.ar)
+        }
+        case a: LispVector => {
+          writeByte(VectorTag)
+          writeVarint(a.length)
+          for (i <- 0 until a.length) write(a.aref(i))
+        }
+        case h: LispHashTable => {
+          writeByte(HashTableTag)
+          writeName(h.test)
+          writeByte(if (h.concurrent) 1 else 0)
+          writeVarint(h.size)
+          h.foreach((k, v) => {
+            write(k)
+            write(v)
+          })
+        }
+        case _ => unwritable(obj)
+      }
+    }
+  }
+
+  protected def writeProcedure(proc: Procedure) {
+    val name = runtime.builtinName(proc)
+    if (name eq null) unwritable(proc)
+    writeByte(ProcedureTag)
+    writeName(name)
+  }
+
+  // 37.42 is written as 3742 and the scale 2, in a few bytes rather than eight
+  private def writeFlonum(d: Double) {
+    if (d != 0 || 1 / d > 0) {
+      var k = 0
+      while (k < decimalScales.length) {
+        val m = math.rint(d * decimalScales(k))
+        if (math.abs(m) < MaxExactLong && m / decimalScales(k) == d) {
+          val z = (m.toLong << 1) ^ (m.toLong >> 63)
+          writeByte(DecimalTag)
+          writeVarint(z << 3 | k)
+          return
+        }
+        k += 1
+      }
+    }
+    writeByte(FlonumTag)
+    writeLong(java.lang.Double.doubleToRawLongBits(d))
+  }
+
+  private def writeSymbol(sym: Symbol) {
+    val known = symbols.get(sym)
+    if (known ne null) {
+      writeByte(NamedSymbol + (known.intValue & 3))
+      writeVarint(known.intValue >>> 2)
+      return
+    }
+    val kind = symbolKind(sym)
+    if (kind == Uninterned) {
+      if (shared(sym)) return
+      writeByte(kind)
+      writeName(sym.name)
+      write(sym.value)
+    } else {
+      writeByte(kind)
+      writeName(sym.name)
+      symbols.put(sym, names.get(sym.name).intValue << 2 | (kind - NamedSymbol))
+    }
+  }
+
+  /*
+   * The conses along the cdrs, up to one written before, are registered before any car is written so
+   * that the reader can make them all at once.  Only cars recurse.
+   */
+  private def writeList(cell: Cell) {
+    if (shared(cell)) return
+    var n = 1
+    var c = cell
+    while (c.cdr.isInstanceOf[Cell] && objects.add(c.cdr) < 0) {
+      c = c.cdr.asInstanceOf[Cell]
+      n += 1
+    }
+    writeByte(ListTag)
+    writeVarint(n)
+    c = cell
+    while (n > 1) {
+      write(c.car)
+      c = c.cdr.asInstanceOf[Cell]
+      n -= 1
+    }
+    write(c.car)
+    write(c.cdr)
+  }
+
+  // Starts a new message: objects written so far are written again rather than referred to, names still are
+  def forgetObjects() {
+    objects.clear()
+  }
+
+  def flush() {
+    drain()
+    out.flush()
+  }
+}
+
+// Numbers objects by identity in the order they are added, each key next to its number
+private final class IdentityTable {
+  private final val InitialSize = 128
+
+  private var table = new Array[AnyRef](InitialSize)
+  private var count = 0
+
+  private def slot(obj: AnyRef, table: Array[AnyRef]): Int = {
+    val mask = table.length - 2
+    var i = (System.identityHashCode(obj) * 0x9E3779B9 << 1) & mask
+    while ((table(i) ne null) && (table(i) ne obj)) i = (i + 2) & mask
+    i
+  }
+
+  // The number obj was added with, or -1 after adding it now
+  def add(obj: AnyRef): Int = {
+    val i = slot(obj, table)
+    if (table(i) ne null) return table(i + 1).asInstanceOf[Integer].intValue
+    table(i) = obj
+    table(i + 1) = Integer.valueOf(count)
+    count += 1
+    if (count * 4 > table.length) grow()
+    -1
+  }
+
+  private def grow() {
+    val old = table
+    table = new Array[AnyRef](old.length * 2)
+    var i = 0
+    while (i < old.length) {
+      if (old(i) ne null) {
+        val j = slot(old(i), table)
+        table(j) = old(i)
+        table(j + 1) = old(i + 1)
+      }
+      i += 2
+    }
+  }
+
+  def clear() {
+    if (table.length > InitialSize) table = new Array[AnyRef](InitialSize)
+    else if (count > 0) util.Arrays.fill(table, null)
+    count = 0
+  }
+}
+
+/*
+ * Reads objects written by a BinaryWriter straight from a buffer.  Named symbols are looked up in env
+ * as the reader does, a fresh symbol standing for each occurrence of a name not bound there.
+ */
+class BinaryReader(runtime: Runtime, in: ByteBuffer, env: Environment) {
+  import BinaryFormat._
+
+  private val objects = new util.ArrayList[LispObject]
+  private val names = new util.ArrayList[String]
+
+  // the symbols names resolved to as of the version of env's bindings, unbound for names env doesn't
+  // bind; root symbols at odd indices, the others at even ones
+  private var symbols = new Array[Symbol](64)
+  private val bindings = env.version
+  private var version = bindings.get
+  private val unbound = new Symbol
+
+  // the symbol env binds name to, or null
+  protected def namedSymbol(name: String): Symbol = SymbolTable.resolve(env, name)
+
+  def readVarint(): Long = {
+    var b = in.get
+    if (b >= 0) return b
+    var n = b & 0x7FL
+    var shift = 7
+    b = in.get
+    while (b < 0) {
+      n |= (b & 0x7FL) << shift
+      shift += 7
+      b = in.get
+    }
+    n | (b.toLong << shift)
+  }
+
+  private def readLength(): Int = {
+    val n = readVarint()
+    if (n < 0 || n > in.remaining) malformed("length " + n)
+    n.toInt
+  }
+
+  private def readNameId(): Int = {
+    val id = readVarint()
+    if (id == names.size) names.add(readChars())
+    else if (id < 0 || id > names.size) malformed("name " + id)
+    id.toInt
+  }
+
+  def readName(): String = names.get(readNameId())
+
+  private def readChars(): String = {
+    val chars = new Array[Char](readLength())
+    var i = 0
+    while (i < chars.length) {
+      val b = in.get
+      if (b >= 0) {
+        chars(i) = b.toChar
+      } else {
+        in.position(in.position - 1)
+        chars(i) = readVarint().toChar
+      }
+      i += 1
+    }
+    new String(chars)
+  }
+
+  private def remember[T <: LispObject](obj: T): T = {
+    objects.add(obj)
+    obj
+  }
+
+  def hasRemaining: Boolean = in.hasRemaining
+
+  // Mirrors BinaryWriter.forgetObjects
+  def forgetObjects() {
+    objects.clear()
+  }
+
+  def read(): LispObject = {
+    val tag = in.get & 0xFF
+    if (tag >= SmallFixnumTag) return LispFixnum.create(tag - SmallFixnumTag + MinSmallFixnum)
+    tag match {
+      case NilTag => null
+      case RefTag => {
+        val id = readVarint()
+        if (id < 0 || id >= objects.size) malformed("reference " + id)
+        objects.get(id.toInt)
+      }
+      case ListTag => readList()
+      case NamedSymbol | Keyword | RootSymbol => readSymbol(tag)
+      case FixnumTag => {
+        val z = readVarint()
+        LispFixnum.create((z >>> 1) ^ -(z & 1))
+      }
+      case DecimalTag => {
+        val z = readVarint()
+        new LispFlonum(((z >>> 4) ^ -((z >>> 3) & 1)) / decimalScales((z & 7).toInt))
+      }
+      case FlonumTag => new LispFlonum(java.lang.Double.longBitsToDouble(in.getLong))
+      case BigIntTag => {
+        val bytes = new Array[Byte](readLength())
+        in.get(bytes)
+        new LispBigInt(new java.math.BigInteger(bytes))
+      }
+      case BigDecimalTag => new LispBigDecimal(BigDecimal(readChars()))
+      case CharTag => LispChar.create(readVarint().toChar)
+      case Uninterned => {
+        val sym = remember(new Symbol(readName()))
+        sym.value = read()
+        sym
+      }
+      case ProcedureTag => {
+        val name = readName()
+        val proc = runtime.builtin(name)
+        if (proc eq null) malformed("no builtin " + name)
+        proc
+      }
+      case CompiledTag => {
+        // numbered before its lambda is read, as the writer numbers it
+        val id = objects.size
+        objects.add(null)
+        val self = read()
+        val proc = compiled(self, read())
+        objects.set(id, proc)
+        proc
+      }
+      case StringTag => remember(new LispString(readChars()))
+      case FixnumArrayTag => {
+        val a = remember(new LispFixnumArray(new Array[Long](readLength())))
+        in.asLongBuffer.get(a.ar)
+        in.position(in.position + a.ar.length * 8)
+        a
+      }
+      case FlonumArrayTag => {
+        val a = remember(new LispFlonumArray(new Array[Double](readLength())))
+        in.asDoubleBuffer.get(a.ar)
+        in.position(in.position + a.ar.length * 8)
+        a
+      }
+      case ByteArrayTag => {
+        val a = remember(new LispByteArray(new Array[Byte](readLength())))
+        in.get(a.ar)
+        a
+      }
+      case VectorTag => {
+        val v = remember(new LispVector(readLength()))
+        for (i <- 0 until v.length) v.aset(i, read())
+        v
+      }
+      case HashTableTag => {
+        val test = readName()
+        val table = remember(new LispHashTable(LispHashTable.test(test), in.get != 0))
+        var n = readLength()
+        while (n > 0) {
+          val k = read()
+          table.put(k, read())
+          n -= 1
+        }
+        table
+      }
+      case _ => malformed("tag " + tag)
+    }
+  }
+
+  // The procedure written as the lambda compiled as self, by the subclasses writing them
+  protected def compiled(self: LispObject, lambda: LispObject): LispObject = malformed("compiled procedure")
+
+  // looks each name up once as long as no environment changes
+  private def readSymbol(kind: Int): Symbol = {
+    val current = bindings.get
+    if (current != version) {
+      util.Arrays.fill(symbols.asInstanceOf[Array[AnyRef]], null)
+      version = current
+    }
+    val id = readNameId()
+    val i = id << 1 | (if (kind == RootSymbol) 1 else 0)
+    if (i >= symbols.length) symbols = util.Arrays.copyOf(symbols, math.max(symbols.length * 2, i + 1))
+    var sym = symbols(i)
+    if (sym eq null) {
+      val name = names.get(id)
+      sym = kind match {
+        case NamedSymbol => namedSymbol(name)
+        case Keyword => Symbol.keyword(name)
+        case _ => RootEnvironment.find(name).getOrElse(malformed("no root symbol " + name))
+      }
+      if (sym eq null) sym = unbound
+      symbols(i) = sym
+    }
+    if (sym eq unbound) new Symbol(names.get(id)) else sym
+  }
+
+  private def readList(): Cell = {
+    var n = readLength()
+    if (n == 0) malformed("empty list")
+    val head = remember(new Cell)
+    var c = head
+    var i = 1
+    while (i < n) {
+      val next = remember(new Cell)
+      c.cdr = next
+      c = next
+      i += 1
+    }
+    c = head
+    while (n > 1) {
+      c.car = read()
+      c = c.cdr.asInstanceOf[Cell]
+      n -= 1
+    }
+    c.car = read()
+    c.cdr = read()
+    head
+  }
+}
@@ -0,0 +1,526 @@
+package org.starlisp.core
+
+import org.objectweb.asm.{Label, MethodVisitor, ClassWriter}
+import org.objectweb.asm.Opcodes._
+import java.util.IdentityHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import collection.mutable.ArrayBuffer
+
+/*
+ * A lambda compiled into a JVM class by Compiler.  Parameters are bound in the same Frames the
+ * interpreter uses, so interpreted code called from compiled code sees them exactly as before.
+ */
+abstract class CompiledProcedure(name: String, val runtime: Runtime, val constants: Array[AnyRef]) extends Subr(name) {
+
+  // the lambda this was compiled from and the symbol it was compiled as, so that it can be compiled again
+  private[core] var lambda: Cell = null
+  private[core] var self: Symbol = null
+
+  def invoke(args: Array[LispObject], env: Environment): LispObject
+
+  def callN(env: Environment, args: Array[LispObject]): LispObject = invoke(args, env)
+
+  // Polled by self tail calls, which loop without going through Runtime.run
+  def poll() {
+    if (Thread.interrupted()) runtime.interrupted()
+  }
+
+  // Calls to operators that are no longer bound to the builtin they were compiled against
+  def call1(operator: Symbol, a: LispObject, env: Environment): LispObject = {
+    runtime.call(runtime.lookup(operator, env), Array(a), env)
+  }
+  def call2(operator: Symbol, a: LispObject, b: LispObject, env: Environment): LispObject = {
+    runtime.call(runtime.lookup(operator, env), Array(a, b), env)
+  }
+
+  // Intrinsics for the two argument calls of the builtins of the same name
+  def add(a: LispObject, b: LispObject): LispObject = LispNumber.add(a, b)
+  def sub(a: LispObject, b: LispObject): LispObject = LispNumber.sub(a, b)
+  def mul(a: LispObject, b: LispObject): LispObject = LispNumber.mul(a, b)
+  def div(a: LispObject, b: LispObject): LispObject = LispNumber.div(a, b)
+  def numEq(a: LispObject, b: LispObject): Boolean = LispNumber.numEq(a, b)
+  def lt(a: LispObject, b: LispObject): Boolean = LispNumber.compare(a, b) < 0
+  def gt(a: LispObject, b: LispObject): Boolean = LispNumber.compare(a, b) > 0
+  def le(a: LispObject, b: LispObject): Boolean = LispNumber.compare(a, b) <= 0
+  def ge(a: LispObject, b: LispObject): Boolean = LispNumber.compare(a, b) >= 0
+  def negP(a: LispObject): Boolean = a.asInstanceOf[LispNumber].negP
+  def eqP(a: LispObject, b: LispObject): Boolean = a == b
+  def atomP(a: LispObject): Boolean = !a.isInstanceOf[Cell]
+  def car(a: LispObject): LispObject = if (a eq null) null else a.asInstanceOf[Cell].car
+  def cdr(a: LispObject): LispObject = if (a eq null) null else a.asInstanceOf[Cell].cdr
+
+  def truth(b: Boolean): LispObject = if (b) Symbol.t else null
+
+  override def toString: String = "#<compiled-function %s >".format(name)
+}
+
+class CompilerClassLoader(parent: ClassLoader) extends ClassLoader(parent) {
+  def define(name: String, bytes: Array[Byte]): Class[_] = defineClass(name, bytes, 0, bytes.length)
+}
+
+/*
+ * Compiles (lambda params . body) forms of one Runtime into classes loaded by its own class loader.
+ *
+ * Macros are expanded at compile time, calls to a handful of builtins (+ - * / = < > <= >= neg? eq?
+ * atom? car cdr cons) are inlined as long as their symbol is still bound to that builtin, and calls of a named
+ * function to itself in tail position become a jump back to the start of the method.  Forms the
+ * compiler has no code for, and calls of procedures that evaluate their own arguments, are analyzed
+ * and run by the interpreter with the compiled frames.
+ */
+class Compiler(runtime: Runtime) {
+
+  private val loader = new CompilerClassLoader(classOf[CompiledProcedure].getClassLoader)
+  private val counter = new AtomicInteger
+
+  def compile(name: Symbol, lambda: Cell): CompiledProcedure = {
+    val className = "org/starlisp/compiled/" + mangle(if (name eq null) "lambda" else name.name) + "$" + counter.incrementAndGet
+    val generator = new Generator(className, name, lambda)
+    val bytes = generator.generate()
+    val cls = synchronized { loader.define(className.replace('/', '.'), bytes) }
+    val compiled = cls.getConstructor(classOf[String], classOf[Runtime], classOf[Array[AnyRef]])
+      .newInstance(if (name eq null) "lambda" else name.name, runtime, generator.constants.toArray)
+      .asInstanceOf[CompiledProcedure]
+    compiled.lambda = lambda
+    compiled.self = name
+    compiled
+  }
+
+  private def mangle(name: String) = name.map(c => if (Character.isJavaIdentifierPart(c)) c else '_')
+
+  private val LispObject = "org/starlisp/core/LispObject"
+  private val LispObjectDesc = "L" + LispObject + ";"
+  private val Environment = "org/starlisp/core/Environment"
+  private val EnvironmentDesc = "L" + Environment + ";"
+  private val Base = "org/starlisp/core/CompiledProcedure"
+  private val RuntimeClass = "org/starlisp/core/Runtime"
+  private val SymbolClass = "org/starlisp/core/Symbol"
+  private val FrameClass = "org/starlisp/core/Frame"
+  private val LambdaNodeClass = "org/starlisp/core/LambdaNode"
+  private val NodeClass = "org/starlisp/core/Node"
+  private val CellClass = "org/starlisp/core/Cell"
+  private val invokeDesc = "([" + LispObjectDesc + EnvironmentDesc + ")" + LispObjectDesc
+
+  // locals of the invoke method
+  private val This = 0
+  private val Args = 1
+  private val Env = 2
+  private val Constants = 3
+  private val RuntimeLocal = 4
+  private val FrameLocal = 5
+  private val ValuesLocal = 6
+
+  // The frames of the compiled lambda and the lets inside it, innermost first
+  private class Lexical(val scope: Scope, val frame: Int, val values: Int, val outer: Lexical)
+
+  private class Generator(className: String, self: Symbol, lambda: Cell) {
+
+    val constants = new ArrayBuffer[AnyRef]
+    private val constantIndex = new IdentityHashMap[AnyRef, Integer]
+    private var mv: MethodVisitor = null
+    private var nextLocal = ValuesLocal + 1
+    private val start = new Label
+    private val fn = new LambdaNode(lambda, null)
+
+    private val intrinsics: Map[String, (String, Int)] = Map(
+      "+" -> ("add", 2), "-" -> ("sub", 2), "*" -> ("mul", 2), "/" -> ("div", 2), "car" -> ("car", 1), "cdr" -> ("cdr", 1))
+    private val predicates: Map[String, (String, Int)] = Map(
+      "=" -> ("numEq", 2), "<" -> ("lt", 2), ">" -> ("gt", 2), "<=" -> ("le", 2), ">=" -> ("ge", 2), "eq?" -> ("eqP", 2), "neg?" -> ("negP", 1), "atom?" -> ("atomP", 1))
+    private val builtins: Map[String, LispObject] = (intrinsics.keys ++ predicates.keys ++ Seq("cons", "running-compiled?"))
+      .map(name => (name, runtime.runtimeEnv.lookup(name))).toMap
+
+    def generate(): Array[Byte] = {
+      val cw = new ClassWriter(ClassWriter.COMPUTE_MAXS)
+      cw.visit(V1_6, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, className, null, Base, null)
+
+      val init = cw.visitMethod(ACC_PUBLIC, "<init>", "(Ljava/lang/String;L" + RuntimeClass + ";[Ljava/lang/Object;)V", null, null)
+      init.visitCode()
+      init.visitVarInsn(ALOAD, 0)
+      init.visitVarInsn(ALOAD, 1)
+      init.visitVarInsn(ALOAD, 2)
+      init.visitVarInsn(ALOAD, 3)
+      init.visitMethodInsn(INVOKESPECIAL, Base, "<init>", "(Ljava/lang/String;L" + RuntimeClass + ";[Ljava/lang/Object;)V")
+      init.visitInsn(RETURN)
+      init.visitMaxs(0, 0)
+      init.visitEnd()
+
+      mv = cw.visitMethod(ACC_PUBLIC, "invoke", invokeDesc, null, null)
+      mv.visitCode()
+      mv.visitVarInsn(ALOAD, This)
+      mv.visitMethodInsn(INVOKEVIRTUAL, Base, "constants", "()[Ljava/lang/Object;")
+      mv.visitVarInsn(ASTORE, Constants)
+      mv.visitVarInsn(ALOAD, This)
+      mv.visitMethodInsn(INVOKEVIRTUAL, Base, "runtime", "()L" + RuntimeClass + ";")
+      mv.visitVarInsn(ASTORE, RuntimeLocal)
+      mv.visitVarInsn(ALOAD, Args)
+      bindFrame(fn, Env, FrameLocal, ValuesLocal)
+      mv.visitLabel(start)
+      compileBody(body(lambda), new Lexical(fn.scope, FrameLocal, ValuesLocal, null), true)
+      mv.visitInsn(ARETURN)
+      mv.visitMaxs(0, 0)
+      mv.visitEnd()
+
+      cw.visitEnd()
+      cw.toByteArray
+    }
+
+    private def body(lambda: Cell): LispObject = lambda.cdr match {
+      case cell: Cell => cell.cdr
+      case _ => null
+    }
+
+    // expects the argument array on the stack
+    private def bindFrame(lambda: LambdaNode, outer: Int, frame: Int, values: Int) {
+      lambda.register(runtime.bindingVersion)
+      pushConstant(lambda, LambdaNodeClass)
+      mv.visitInsn(SWAP)
+      mv.visitVarInsn(ALOAD, outer)
+      mv.visitMethodInsn(INVOKEVIRTUAL, LambdaNodeClass, "frame", "([" + LispObjectDesc + EnvironmentDesc + ")L" + FrameClass + ";")
+      mv.visitInsn(DUP)
+      mv.visitVarInsn(ASTORE, frame)
+      mv.visitMethodInsn(INVOKEVIRTUAL, FrameClass, "values", "()[" + LispObjectDesc)
+      mv.visitVarInsn(ASTORE, values)
+    }
+
+    private def constant(obj: AnyRef): Int = {
+      val index = constantIndex.get(obj)
+      if (index ne null) return index
+      constants += obj
+      constantIndex.put(obj, constants.length - 1)
+      constants.length - 1
+    }
+
+    private def pushConstant(obj: AnyRef, cls: String) {
+      if (obj eq null) {
+        mv.visitInsn(ACONST_NULL)
+      } else {
+        mv.visitVarInsn(ALOAD, Constants)
+        pushInt(constant(obj))
+        mv.visitInsn(AALOAD)
+        mv.visitTypeInsn(CHECKCAST, cls)
+      }
+    }
+
+    private def pushInt(n: Int) {
+      if (n >= -1 && n <= 5) mv.visitInsn(ICONST_0 + n)
+      else if (n >= Byte.MinValue && n <= Byte.MaxValue) mv.visitIntInsn(BIPUSH, n)
+      else if (n >= Short.MinValue && n <= Short.MaxValue) mv.visitIntInsn(SIPUSH, n)
+      else mv.visitLdcInsn(Int.box(n))
+    }
+
+    private def newLocal(): Int = {
+      nextLocal += 1
+      nextLocal - 1
+    }
+
+    private def compileBody(forms: LispObject, lexical: Lexical, tail: Boolean) {
+      if (!forms.isInstanceOf[Cell]) {
+        mv.visitInsn(ACONST_NULL)
+        return
+      }
+      var c = forms
+      while (c.isInstanceOf[Cell]) {
+        val cell = c.asInstanceOf[Cell]
+        val last = !cell.cdr.isInstanceOf[Cell]
+        compile(cell.car, lexical, tail && last)
+        if (!last) mv.visitInsn(POP)
+        c = cell.cdr
+      }
+    }
+
+    // Leaves the value of obj on the stack, unless it is a self call in tail position
+    private def compile(obj: LispObject, lexical: Lexical, tail: Boolean) {
+      obj match {
+        case symbol: Symbol => compileSymbol(symbol, lexical)
+        case cell: Cell => compileForm(cell, lexical, tail)
+        case _ => pushConstant(obj, LispObject)
+      }
+    }
+
+    private def compileSymbol(symbol: Symbol, lexical: Lexical) {
+      var l = lexical
+      while (l ne null) {
+        val index = l.scope.indexOf(symbol)
+        if (index >= 0) {
+          val done = new Label
+          // a symbol carrying its own value shadows bindings, as in Runtime.lookup
+          if (symbol.value ne null) {
+            pushConstant(symbol, SymbolClass)
+            mv.visitMethodInsn(INVOKEVIRTUAL, SymbolClass, "value", "()" + LispObjectDesc)
+            mv.visitInsn(DUP)
+            mv.visitJumpInsn(IFNONNULL, done)
+            mv.visitInsn(POP)
+          }
+          mv.visitVarInsn(ALOAD, l.values)
+          pushInt(index)
+          mv.visitInsn(AALOAD)
+          mv.visitLabel(done)
+          return
+        }
+        l = l.outer
+      }
+      if (symbol.name == "nil") {
+        mv.visitInsn(ACONST_NULL)
+      } else {
+        mv.visitVarInsn(ALOAD, RuntimeLocal)
+        pushConstant(symbol, SymbolClass)
+        mv.visitVarInsn(ALOAD, lexical.frame)
+        mv.visitMethodInsn(INVOKEVIRTUAL, RuntimeClass, "lookup", "(L" + SymbolClass + ";" + EnvironmentDesc + ")" + LispObjectDesc)
+      }
+    }
+
+    private def isLexical(symbol: Symbol, lexical: Lexical): Boolean = {
+      var l = lexical
+      while (l ne null) {
+        if (l.scope.binds(symbol)) return true
+        l = l.outer
+      }
+      false
+    }
+
+    // the symbol holding the global value of symbol (itself for builtins and t), if it is bound
+    private def globalBinding(symbol: Symbol): Symbol = {
+      if (symbol.value ne null) symbol else runtime.globalEnv.find(symbol.name).getOrElse(null)
+    }
+
+    private def globalValue(symbol: Symbol): LispObject = {
+      val binding = globalBinding(symbol)
+      if (binding eq null) null else binding.value
+    }
+
+    private def arguments(cell: Cell): Array[LispObject] = {
+      val args = new ArrayBuffer[LispObject]
+      var c = cell.cdr
+      while (c.isInstanceOf[Cell]) {
+        args += c.asInstanceOf[Cell].car
+        c = c.asInstanceOf[Cell].cdr
+      }
+      if (c ne null) null else args.toArray
+    }
+
+    private def compileForm(cell: Cell, lexical: Lexical, tail: Boolean) {
+      val op = cell.car
+      val args = arguments(cell)
+      if (Analyzer.special(op, Symbol.quote, Analyzer.quoteProc)) {
+        pushConstant(Analyzer.nth(cell, 1), LispObject)
+      } else if (Analyzer.special(op, Symbol._if, Analyzer.ifProc)) {
+        val otherwise = new Label
+        val done = new Label
+        compileTest(Analyzer.nth(cell, 1), lexical, otherwise)
+        compile(Analyzer.nth(cell, 2), lexical, tail)
+        mv.visitJumpInsn(GOTO, done)
+        mv.visitLabel(otherwise)
+        compile(Analyzer.nth(cell, 3), lexical, tail)
+        mv.visitLabel(done)
+      } else if (Analyzer.special(op, Symbol.lambda, Analyzer.lambdaProc) || Analyzer.special(op, Symbol.`macro`, Analyzer.macroProc)) {
+        pushConstant(cell, LispObject)
+      } else if (args eq null) {
+        interpret(cell, lexical)
+      } else {
+        op match {
+          case fn: Cell if Analyzer.special(fn.car, Symbol.lambda, Analyzer.lambdaProc) => compileLet(fn, args, lexical, tail)
+          case symbol: Symbol if !isLexical(symbol, lexical) => compileGlobalCall(cell, symbol, args, lexical, tail)
+          case _: Symbol | _: Cell => {
+            mv.visitVarInsn(ALOAD, RuntimeLocal)
+            compile(op, lexical, false)
+            compileCall(args, lexical)
+          }
+          case _ => interpret(cell, lexical)
+        }
+      }
+    }
+
+    // ((lambda params . body) args...) is bound in a frame of its own, or inline when it binds nothing
+    private def compileLet(lambda: Cell, args: Array[LispObject], lexical: Lexical, tail: Boolean) {
+      val let = new LambdaNode(lambda, lexical.scope)
+      if (let.scope.names.length == 0 && args.length == 0) {
+        compileBody(body(lambda), lexical, tail)
+      } else {
+        compileArgs(args, lexical)
+        val frame = newLocal()
+        val values = newLocal()
+        bindFrame(let, lexical.frame, frame, values)
+        compileBody(body(lambda), new Lexical(let.scope, frame, values, lexical), tail)
+      }
+    }
+
+    private def compileGlobalCall(cell: Cell, symbol: Symbol, args: Array[LispObject], lexical: Lexical, tail: Boolean) {
+      val value = globalValue(symbol)
+      if ((self ne null) && symbol == self) {
+        compileSelfCall(args, lexical, tail)
+      } else if (value.isInstanceOf[Cell] && (value.asInstanceOf[Cell].car eq Symbol.`macro`)) {
+        compile(runtime.expand(Analyzer.lambda(value.asInstanceOf[Cell]), cell, runtime.globalEnv), lexical, tail)
+      } else if (value.isInstanceOf[Procedure] && !value.isInstanceOf[Subr]) {
+        // procedures like *when and future evaluate their arguments themselves, so they get the form
+        interpret(cell, lexical)
+      } else if ((builtins.get(symbol.name) eq None) || (builtins(symbol.name) ne value)) {
+        mv.visitVarInsn(ALOAD, RuntimeLocal)
+        compileSymbol(symbol, lexical)
+        compileCall(args, lexical)
+      } else if (symbol.name == "running-compiled?" && args.length == 0) {
+        pushConstant(Symbol.t, LispObject)
+      } else if (symbol.name == "cons" && args.length == 2) {
+        val locals = evaluate(args, lexical)
+        val slow = new Label
+        val done = new Label
+        checkBinding(symbol, value, slow)
+        mv.visitTypeInsn(NEW, CellClass)
+        mv.visitInsn(DUP)
+        locals.foreach(mv.visitVarInsn(ALOAD, _))
+        mv.visitMethodInsn(INVOKESPECIAL, CellClass, "<init>", "(" + LispObjectDesc + LispObjectDesc + ")V")
+        mv.visitJumpInsn(GOTO, done)
+        mv.visitLabel(slow)
+        callRebound(symbol, locals, lexical)
+        mv.visitLabel(done)
+      } else if (intrinsics.get(symbol.name).exists(_._2 == args.length)) {
+        val locals = evaluate(args, lexical)
+        val slow = new Label
+        val done = new Label
+        checkBinding(symbol, value, slow)
+        callHelper(intrinsics(symbol.name)._1, locals, LispObjectDesc)
+        mv.visitJumpInsn(GOTO, done)
+        mv.visitLabel(slow)
+        callRebound(symbol, locals, lexical)
+        mv.visitLabel(done)
+      } else if (predicates.get(symbol.name).exists(_._2 == args.length)) {
+        val locals = evaluate(args, lexical)
+        val slow = new Label
+        val done = new Label
+        checkBinding(symbol, value, slow)
+        callHelper(predicates(symbol.name)._1, locals, "Z")
+        mv.visitVarInsn(ALOAD, This)
+        mv.visitInsn(SWAP)
+        mv.visitMethodInsn(INVOKEVIRTUAL, Base, "truth", "(Z)" + LispObjectDesc)
+        mv.visitJumpInsn(GOTO, done)
+        mv.visitLabel(slow)
+        callRebound(symbol, locals, lexical)
+        mv.visitLabel(done)
+      } else {
+        mv.visitVarInsn(ALOAD, RuntimeLocal)
+        compileSymbol(symbol, lexical)
+        compileCall(args, lexical)
+      }
+    }
+
+    // Intrinsics evaluate their arguments into locals first, so both paths below can use them
+    private def evaluate(args: Array[LispObject], lexical: Lexical): Array[Int] = {
+      args.map { arg =>
+        compile(arg, lexical, false)
+        val local = newLocal()
+        mv.visitVarInsn(ASTORE, local)
+        local
+      }
+    }
+
+    // Jumps to rebound unless symbol is still bound to the builtin the code was compiled against
+    private def checkBinding(symbol: Symbol, builtin: LispObject, rebound: Label) {
+      pushConstant(globalBinding(symbol), SymbolClass)
+      mv.visitMethodInsn(INVOKEVIRTUAL, SymbolClass, "value", "()" + LispObjectDesc)
+      pushConstant(builtin, LispObject)
+      mv.visitJumpInsn(IF_ACMPNE, rebound)
+    }
+
+    private def callHelper(helper: String, locals: Array[Int], result: String) {
+      mv.visitVarInsn(ALOAD, This)
+      locals.foreach(mv.visitVarInsn(ALOAD, _))
+      mv.visitMethodInsn(INVOKEVIRTUAL, Base, helper, "(" + LispObjectDesc * locals.length + ")" + result)
+    }
+
+    private def callRebound(symbol: Symbol, locals: Array[Int], lexical: Lexical) {
+      mv.visitVarInsn(ALOAD, This)
+      pushConstant(symbol, SymbolClass)
+      locals.foreach(mv.visitVarInsn(ALOAD, _))
+      mv.visitVarInsn(ALOAD, lexical.frame)
+      mv.visitMethodInsn(INVOKEVIRTUAL, Base, "call" + locals.length,
+        "(L" + SymbolClass + ";" + LispObjectDesc * locals.length + EnvironmentDesc + ")" + LispObjectDesc)
+    }
+
+    // Jumps to otherwise when test evaluates to nil
+    private def compileTest(test: LispObject, lexical: Lexical, otherwise: Label) {
+      test match {
+        case cell: Cell if cell.car.isInstanceOf[Symbol] && !isLexical(cell.car.asInstanceOf[Symbol], lexical) => {
+          val symbol = cell.car.asInstanceOf[Symbol]
+          val args = arguments(cell)
+          val value = globalValue(symbol)
+          if ((args ne null) && (value ne null) && builtins.get(symbol.name).exists(_ eq value) &&
+              predicates.get(symbol.name).exists(_._2 == args.length) && ((self eq null) || symbol != self)) {
+            val locals = evaluate(args, lexical)
+            val slow = new Label
+            val done = new Label
+            checkBinding(symbol, value, slow)
+            callHelper(predicates(symbol.name)._1, locals, "Z")
+            mv.visitJumpInsn(IFEQ, otherwise)
+            mv.visitJumpInsn(GOTO, done)
+            mv.visitLabel(slow)
+            callRebound(symbol, locals, lexical)
+            mv.visitJumpInsn(IFNULL, otherwise)
+            mv.visitLabel(done)
+            return
+          }
+        }
+        case _ =>
+      }
+      compile(test, lexical, false)
+      mv.visitJumpInsn(IFNULL, otherwise)
+    }
+
+    /*
+     * While the name still refers to this procedure, a call to it in tail position rebinds the
+     * parameters and jumps back to the start, polling for interrupts as Runtime.run does; other calls
+     * invoke it directly.
+     */
+    private def compileSelfCall(args: Array[LispObject], lexical: Lexical, tail: Boolean) {
+      val slow = new Label
+      val done = new Label
+      pushConstant(self, SymbolClass)
+      mv.visitMethodInsn(INVOKEVIRTUAL, SymbolClass, "value", "()" + LispObjectDesc)
+      mv.visitVarInsn(ALOAD, This)
+      mv.visitJumpInsn(IF_ACMPNE, slow)
+      if (tail) {
+        compileArgs(args, lexical)
+        bindFrame(fn, Env, FrameLocal, ValuesLocal)
+        mv.visitVarInsn(ALOAD, This)
+        mv.visitMethodInsn(INVOKEVIRTUAL, Base, "poll", "()V")
+        mv.visitJumpInsn(GOTO, start)
+      } else {
+        mv.visitVarInsn(ALOAD, This)
+        compileArgs(args, lexical)
+        mv.visitVarInsn(ALOAD, lexical.frame)
+        mv.visitMethodInsn(INVOKEVIRTUAL, Base, "invoke", invokeDesc)
+        mv.visitJumpInsn(GOTO, done)
+      }
+      mv.visitLabel(slow)
+      mv.visitVarInsn(ALOAD, RuntimeLocal)
+      compileSymbol(self, lexical)
+      compileCall(args, lexical)
+      mv.visitLabel(done)
+    }
+
+    private def compileArgs(args: Array[LispObject], lexical: Lexical) {
+      pushInt(args.length)
+      mv.visitTypeInsn(ANEWARRAY, LispObject)
+      var i = 0
+      while (i < args.length) {
+        mv.visitInsn(DUP)
+        pushInt(i)
+        compile(args(i), lexical, false)
+        mv.visitInsn(AASTORE)
+        i += 1
+      }
+    }
+
+    // expects the runtime and the function below it on the stack
+    private def compileCall(args: Array[LispObject], lexical: Lexical) {
+      compileArgs(args, lexical)
+      mv.visitVarInsn(ALOAD, lexical.frame)
+      mv.visitMethodInsn(INVOKEVIRTUAL, RuntimeClass, "call", "(" + LispObjectDesc + "[" + LispObjectDesc + EnvironmentDesc + ")" + LispObjectDesc)
+    }
+
+    // Forms without compiled code are evaluated by the interpreter, looking up parameters by name
+    private def interpret(form: LispObject, lexical: Lexical) {
+      pushConstant(Analyzer.analyze(form, null, false), NodeClass)
+      mv.visitVarInsn(ALOAD, RuntimeLocal)
+      mv.visitVarInsn(ALOAD, lexical.frame)
+      mv.visitMethodInsn(INVOKEVIRTUAL, NodeClass, "eval", "(L" + RuntimeClass + ";" + EnvironmentDesc + ")" + LispObjectDesc)
+    }
+  }
+}
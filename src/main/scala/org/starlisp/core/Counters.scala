@@ -1,17 +1,26 @@
 package org.starlisp.core
 
-import collection.mutable
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.ConcurrentHashMap
 
 object Counters {
 
-  private val cache = new mutable.HashMap[String, AtomicInteger]
+  private val cache = new ConcurrentHashMap[String, AtomicInteger]
 
   def inc(str: String) {
-    cache.getOrElseUpdate(str, new AtomicInteger()).incrementAndGet()
+    var counter = cache.get(str)
+    if (counter eq null) {
+      val prev = cache.putIfAbsent(str, new AtomicInteger())
+      counter = if (prev ne null) prev else cache.get(str)
+    }
+    counter.incrementAndGet()
   }
 
   def report() {
-    cache.foreach{case (key, value) => println("%s -> %d".format(key, value.get()))}
+    val it = cache.entrySet.iterator
+    while (it.hasNext) {
+      val e = it.next
+      println("%s -> %d".format(e.getKey, e.getValue.get()))
+    }
   }
 }
@@ -0,0 +1,240 @@
+package org.starlisp.core
+
+import java.io._
+import java.net.{InetSocketAddress, URLDecoder}
+import java.util.concurrent._
+import java.util.concurrent.locks.ReentrantLock
+import com.sun.net.httpserver.{HttpExchange, HttpHandler, HttpServer}
+
+object EvalServer {
+
+  private def daemons(name: String) = new ThreadFactory {
+    def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, name)
+      thread.setDaemon(true)
+      thread
+    }
+  }
+
+  // A thread per task, virtual on JVMs that have them (Java 21 and later)
+  def newThreadPerTaskExecutor(): ExecutorService = {
+    try {
+      classOf[Executors].getMethod("newVirtualThreadPerTaskExecutor").invoke(null).asInstanceOf[ExecutorService]
+    } catch {
+      case e: NoSuchMethodException => Executors.newCachedThreadPool(daemons("starlisp-server"))
+    }
+  }
+
+  private final class Session(val runtime: Runtime) {
+    val lock = new ReentrantLock
+    @volatile var lastUsed = System.currentTimeMillis
+  }
+
+  private final class Overloaded(msg: String) extends Exception(msg)
+}
+
+/*
+ * An HTTP endpoint evaluating the Lisp forms POSTed to /eval.  Requests are handled on a thread of
+ * their own each, virtual where the JVM has them, and evaluated on a pool of maxConcurrent platform
+ * threads, since a virtual thread isn't preempted while it computes and evaluations could otherwise
+ * hold on to every carrier thread.  Each form's value is written to the response with prin1 as soon
+ * as it is evaluated, as is anything written to *standard-output*; evaluation stops at the first
+ * error.  A request evaluates in a runtime of a pool reset after every request, or with ?session=id
+ * in a runtime kept for that session until it is idle for sessionTimeout ms or DELETEd.  At most
+ * maxConcurrent requests evaluate at once, others wait for up to timeout ms; evaluation is
+ * interrupted after timeout ms, and the futures it started are cancelled.
+ */
+final class EvalServer(val port: Int,
+                       val maxConcurrent: Int = 64,
+                       val timeout: Long = 10000,
+                       val sessionTimeout: Long = 30 * 60 * 1000,
+                       val maxSessions: Int = 1024,
+                       val maxRequestSize: Int = 1 << 20,
+                       template: RuntimeTemplate = RuntimeTemplate.bootstrapped) {
+  import EvalServer._
+
+  private val permits = new Semaphore(maxConcurrent)
+  private val pool = new RuntimePool(template, maxConcurrent)
+  private val sessions = new ConcurrentHashMap[String, Session]
+  private val timer = new ScheduledThreadPoolExecutor(1, daemons("starlisp-server"))
+  timer.setRemoveOnCancelPolicy(true)
+
+  private var server: HttpServer = _
+  private var executor: ExecutorService = _
+  private var evaluators: ExecutorService = _
+
+  def start(): EvalServer = synchronized {
+    executor = newThreadPerTaskExecutor()
+    evaluators = Executors.newFixedThreadPool(maxConcurrent, daemons("starlisp-eval"))
+    server = HttpServer.create(new InetSocketAddress(port), 0)
+    server.setExecutor(executor)
+    server.createContext("/eval", new HttpHandler {
+      def handle(exchange: HttpExchange) {
+        try {
+          EvalServer.this.handle(exchange)
+        } catch {
+          case e: IOException => // the client went away
+        } finally {
+          exchange.close()
+        }
+      }
+    })
+    val sweep = math.max(1000, sessionTimeout / 4)
+    timer.scheduleWithFixedDelay(new Runnable {
+      def run() { expireSessions() }
+    }, sweep, sweep, TimeUnit.MILLISECONDS)
+    server.start()
+    this
+  }
+
+  def stop() {
+    synchronized {
+      if (server ne null) server.stop(0)
+      if (executor ne null) executor.shutdownNow()
+      if (evaluators ne null) evaluators.shutdownNow()
+      server = null
+      executor = null
+      evaluators = null
+    }
+    timer.shutdownNow()
+    sessions.clear()
+  }
+
+  private def expireSessions() {
+    val idleSince = System.currentTimeMillis - sessionTimeout
+    val it = sessions.values.iterator
+    while (it.hasNext) {
+      if (it.next.lastUsed < idleSince) it.remove()
+    }
+  }
+
+  private def respond(exchange: HttpExchange, status: Int, msg: String) {
+    val bytes = (msg + "\n").getBytes("UTF-8")
+    exchange.getResponseHeaders.set("Content-Type", "text/plain; charset=utf-8")
+    exchange.sendResponseHeaders(status, bytes.length)
+    exchange.getResponseBody.write(bytes)
+  }
+
+  private def sessionId(exchange: HttpExchange): String = {
+    val query = exchange.getRequestURI.getRawQuery
+    if (query eq null) return null
+    for (param <- query.split('&')) {
+      val i = param.indexOf('=')
+      if (i > 0 && param.substring(0, i) == "session") return URLDecoder.decode(param.substring(i + 1), "UTF-8")
+    }
+    null
+  }
+
+  private def readRequest(exchange: HttpExchange): String = {
+    val in = exchange.getRequestBody
+    val out = new ByteArrayOutputStream
+    val buf = new Array[Byte](8192)
+    var n = in.read(buf)
+    while (n >= 0) {
+      out.write(buf, 0, n)
+      if (out.size > maxRequestSize) return null
+      n = in.read(buf)
+    }
+    out.toString("UTF-8")
+  }
+
+  private def handle(exchange: HttpExchange) {
+    val id = sessionId(exchange)
+    exchange.getRequestMethod match {
+      case "POST" => {
+        val forms = readRequest(exchange)
+        if (forms eq null) return respond(exchange, 413, "Request too large.")
+        if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) return respond(exchange, 503, "Too many requests.")
+        try {
+          if (id eq null) evalPooled(exchange, forms) else evalInSession(exchange, id, forms)
+        } catch {
+          case e: Overloaded => respond(exchange, 503, e.getMessage)
+        } finally {
+          permits.release()
+        }
+      }
+      case "DELETE" if id ne null => {
+        sessions.remove(id)
+        respond(exchange, 200, "nil")
+      }
+      case _ => respond(exchange, 405, "POST forms to evaluate them.")
+    }
+  }
+
+  private def evalPooled(exchange: HttpExchange, forms: String) {
+    val runtime = pool.acquire(timeout, TimeUnit.MILLISECONDS)
+    if (runtime eq null) throw new Overloaded("No runtime available.")
+    try eval(exchange, runtime, forms) finally pool.release(runtime)
+  }
+
+  private def evalInSession(exchange: HttpExchange, id: String, forms: String) {
+    var session = sessions.get(id)
+    if (session eq null) {
+      if (sessions.size >= maxSessions) throw new Overloaded("Too many sessions.")
+      val fresh = new Session(template.newRuntime)
+      session = sessions.putIfAbsent(id, fresh)
+      if (session eq null) session = fresh
+    }
+    if (!session.lock.tryLock(timeout, TimeUnit.MILLISECONDS)) throw new Overloaded("Session busy.")
+    try {
+      session.lastUsed = System.currentTimeMillis
+      val stdout = session.runtime.standardOutput.value
+      try eval(exchange, session.runtime, forms) finally session.runtime.standardOutput.value = stdout
+    } finally {
+      session.lock.unlock()
+    }
+  }
+
+  // Evaluates forms on one of the evaluators, one of which is idle for every permit
+  private def eval(exchange: HttpExchange, runtime: Runtime, forms: String) {
+    exchange.getResponseHeaders.set("Content-Type", "text/plain; charset=utf-8")
+    exchange.sendResponseHeaders(200, 0)
+    val out = new LispOutputStreamWriter(new PrintWriter(new OutputStreamWriter(exchange.getResponseBody, "UTF-8")))
+    runtime.standardOutput.value = out
+    val evaluation = evaluators.submit(new Runnable {
+      def run() { evaluate(runtime, forms, out) }
+    })
+    try {
+      evaluation.get()
+    } catch {
+      case e: ExecutionException => throw e.getCause
+      case e: InterruptedException => {
+        // the server is stopping
+        evaluation.cancel(true)
+        Thread.currentThread.interrupt()
+      }
+    }
+  }
+
+  // Evaluates forms, interrupting the evaluation once timeout has passed
+  private def evaluate(runtime: Runtime, forms: String, out: LispOutputStreamWriter) {
+    val thread = Thread.currentThread
+    val guard = new Object
+    var running = true
+    val interrupt = timer.schedule(new Runnable {
+      def run() {
+        guard.synchronized { if (running) thread.interrupt() }
+      }
+    }, timeout, TimeUnit.MILLISECONDS)
+    try {
+      val in = runtime.inputStreamFromString(forms)
+      var form = in.read
+      while (!in.eof) {
+        runtime.prin1(runtime.eval(form), out)
+        out.write('\n')
+        form = in.read
+      }
+    } catch {
+      case e: LispException => {
+        if (interrupt.isDone) out.write("error: Timed out after %d ms.\n".format(timeout))
+        else out.write("error: " + e.getMessage + "\n")
+      }
+      case e: StackOverflowError => out.write("error: Stack overflow.\n")
+      case e: RuntimeException => out.write("error: " + e + "\n")
+    } finally {
+      guard.synchronized { running = false }
+      if (!interrupt.cancel(false)) runtime.cancelFutures()
+      Thread.interrupted()
+    }
+  }
+}
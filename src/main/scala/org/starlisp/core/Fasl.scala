@@ -0,0 +1,153 @@
+package org.starlisp.core
+
+import java.io._
+import java.nio.{BufferUnderflowException, MappedByteBuffer}
+import java.nio.channels.FileChannel
+import java.util.zip.CRC32
+
+/*
+ * Fasl files: the top-level forms of a source file read and with their macros expanded, saved in the
+ * binary format next to the source (foo.ljsp compiles to foo.fasl) so that load can evaluate them
+ * without reading the source.  A fasl records the length, modification time and CRC-32 of the source
+ * it was compiled from and is only used while the source still matches them.
+ */
+object Fasl {
+  private val Magic = 0x534c4641 // "SLFA"
+  private val Version = 1
+
+  def path(source: String): String = {
+    if (source.endsWith(".fasl")) source
+    else if (source.endsWith(".ljsp")) source.substring(0, source.length - 5) + ".fasl"
+    else source + ".fasl"
+  }
+
+  private def checksum(file: File): Int = {
+    val crc = new CRC32
+    val stream = new FileInputStream(file)
+    try {
+      val buf = new Array[Byte](8192)
+      var n = stream.read(buf)
+      while (n >= 0) {
+        crc.update(buf, 0, n)
+        n = stream.read(buf)
+      }
+    } finally {
+      stream.close()
+    }
+    crc.getValue.toInt
+  }
+
+  // The global value of the operator of form if it's a macro, null otherwise
+  private def macroOf(form: LispObject, env: Environment): Cell = form match {
+    case cell: Cell => cell.car match {
+      case sym: Symbol => {
+        val value = if (sym.value ne null) sym.value else env.lookup(sym.name)
+        value match {
+          case fn: Cell if fn.car eq Symbol.`macro` => fn
+          case _ => null
+        }
+      }
+      case _ => null
+    }
+    case _ => null
+  }
+
+  // Expands form until it no longer is a macro call, as evaluating it would
+  private def expand(runtime: Runtime, form: LispObject, env: Environment): LispObject = {
+    var expanded = form
+    var fn = macroOf(expanded, env)
+    while (fn ne null) {
+      val cell = expanded.asInstanceOf[Cell]
+      val (car, cdr) = (cell.car, cell.cdr)
+      val result = runtime.expand(Analyzer.lambda(fn), cell, env)
+      // a macro displacing its call leaves the expansion in place of the call
+      expanded = if ((cell.car ne car) || (cell.cdr ne cdr)) cell else result
+      fn = macroOf(expanded, env)
+    }
+    expanded
+  }
+
+  /*
+   * Compiles source to its fasl and returns the fasl's name.  Each form is evaluated once expanded, as
+   * load would, so that the forms after it see the macros and globals it defines.
+   */
+  def compile(runtime: Runtime, source: String, env: Environment): String = {
+    val sourceFile = new File(source)
+    val fasl = new File(path(source))
+    if (fasl == sourceFile) throw new LispException(Symbol.internalError, source + " is a fasl already.")
+    try {
+      val length = sourceFile.length
+      val modified = sourceFile.lastModified
+      val crc = checksum(sourceFile)
+      val in = new LispInputStreamReader(env, new BufferedReader(new FileReader(sourceFile)))
+      val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fasl)))
+      var done = false
+      try {
+        out.writeInt(Magic)
+        out.writeInt(Version)
+        out.writeLong(length)
+        out.writeLong(modified)
+        out.writeInt(crc)
+        val writer = new BinaryWriter(runtime, out)
+        var form = in.read
+        while (!in.eof) {
+          val expanded = expand(runtime, form, env)
+          writer.write(expanded)
+          writer.forgetObjects()
+          runtime.eval(expanded, env)
+          form = in.read
+        }
+        writer.flush()
+        done = true
+      } finally {
+        in.close
+        out.close()
+        if (!done) fasl.delete()
+      }
+    } catch {
+      case e: IOException => throw new LispException(Symbol.internalError, e)
+    }
+    fasl.getPath
+  }
+
+  // The forms of the fasl for source, mapped, or null if there is none or source changed since
+  private def open(source: String): MappedByteBuffer = {
+    val fasl = new File(path(source))
+    if (!fasl.isFile) return null
+    val stream = new FileInputStream(fasl)
+    val buf = try {
+      val fc = stream.getChannel
+      fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size())
+    } finally {
+      stream.close()
+    }
+    if (buf.remaining < 28 || buf.getInt != Magic || buf.getInt != Version) return null
+    val length = buf.getLong
+    val modified = buf.getLong
+    val crc = buf.getInt
+    val sourceFile = new File(source)
+    // a fasl loaded by name, or one shipped without its source, is taken as it is
+    if (fasl == sourceFile || !sourceFile.isFile) return buf
+    if (sourceFile.length != length) return null
+    if (sourceFile.lastModified != modified && checksum(sourceFile) != crc) return null
+    buf
+  }
+
+  // Evaluates the forms of the fasl for source if it's up to date and returns whether it was
+  def load(runtime: Runtime, source: String, env: Environment): Boolean = {
+    try {
+      val buf = open(source)
+      if (buf eq null) return false
+      val reader = new BinaryReader(runtime, buf, env)
+      while (reader.hasRemaining) {
+        val form = reader.read()
+        reader.forgetObjects()
+        runtime.eval(form, env)
+      }
+      true
+    } catch {
+      case e: BufferUnderflowException => BinaryFormat.malformed(path(source) + " is truncated")
+      case e: IOException => throw new LispException(Symbol.internalError, e)
+    }
+  }
+}
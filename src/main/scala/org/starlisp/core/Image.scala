@@ -0,0 +1,106 @@
+package org.starlisp.core
+
+import java.io._
+import java.nio.{BufferUnderflowException, ByteBuffer}
+import java.util
+import java.nio.channels.FileChannel
+
+/*
+ * Boot images: the global definitions of a runtime saved in the binary format, so that a new runtime
+ * can start out with them instead of evaluating bootstrap.ljsp again.  Symbols of globals and builtins
+ * are saved by name and become the bindings of the loading runtime, other symbols are saved whole.
+ * Compiled procedures are saved as the lambda they were compiled from and compiled again once all the
+ * definitions are loaded, as their code depends on the macros and builtins bound when compiling; those
+ * that aren't the value of a global load as the lambda.
+ */
+object Image {
+  private val Magic = 0x534c4953 // "SLIS"
+  private val Version = 3
+
+  private final class ImageWriter(runtime: Runtime, out: OutputStream, definitions: Map[String, Symbol])
+    extends BinaryWriter(runtime, out) {
+
+    override protected def symbolKind(sym: Symbol): Int = {
+      val kind = super.symbolKind(sym)
+      if (kind != BinaryFormat.NamedSymbol) kind
+      else if ((definitions.get(sym.name) exists (_ eq sym)) || (runtime.runtimeEnv.find(sym.name) exists (_ eq sym))) kind
+      else BinaryFormat.Uninterned
+    }
+
+    override protected def writeProcedure(proc: Procedure) {
+      proc match {
+        case compiled: CompiledProcedure if compiled.lambda ne null => if (!shared(compiled)) {
+          writeByte(BinaryFormat.CompiledTag)
+          write(compiled.self)
+          write(compiled.lambda)
+        }
+        case _ => super.writeProcedure(proc)
+      }
+    }
+  }
+
+  private final class ImageReader(runtime: Runtime, in: ByteBuffer) extends BinaryReader(runtime, in, runtime.globalEnv) {
+    // the lambdas read for compiled procedures and the symbol each was compiled as
+    val lambdas = new util.IdentityHashMap[LispObject, LispObject]
+
+    override protected def compiled(self: LispObject, lambda: LispObject): LispObject = {
+      if (!lambda.isInstanceOf[Cell] || (self ne null) && !self.isInstanceOf[Symbol]) BinaryFormat.malformed("compiled procedure")
+      lambdas.put(lambda, self)
+      lambda
+    }
+  }
+
+  def save(runtime: Runtime, file: File) {
+    val definitions = runtime.definitions
+    val symbols = definitions.values.toArray
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))
+    var done = false
+    try {
+      out.writeInt(Magic)
+      out.writeInt(Version)
+      val writer = new ImageWriter(runtime, out, definitions)
+      writer.writeVarint(symbols.length)
+      symbols.foreach(sym => writer.writeName(sym.name))
+      symbols.foreach(sym => writer.write(sym.value))
+      writer.flush()
+      done = true
+    } catch {
+      case e: IOException => throw new LispException(Symbol.internalError, e)
+    } finally {
+      out.close()
+      if (!done) file.delete()
+    }
+  }
+
+  // the runtime's binding of a saved global, which is its builtin symbol for builtins bootstrap assigned
+  private def binding(runtime: Runtime, name: String): Symbol =
+    runtime.globalEnv.find(name).filter(!Symbol.isShared(_)).getOrElse(runtime.globalEnv.intern(new Symbol(name)))
+
+  // Binds the definitions saved in file in runtime, reading them straight from the mapped file
+  def load(runtime: Runtime, file: File): Runtime = {
+    val stream = new FileInputStream(file)
+    try {
+      val fc = stream.getChannel
+      val buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size())
+      if (buf.remaining < 8 || buf.getInt != Magic) BinaryFormat.malformed(file + " is not an image")
+      if (buf.getInt != Version) BinaryFormat.malformed(file + " was saved by another version")
+      val reader = new ImageReader(runtime, buf)
+      val symbols = Array.fill(reader.readVarint().toInt)(binding(runtime, reader.readName()))
+      symbols.foreach(_.value = reader.read())
+      val compiled = new util.IdentityHashMap[LispObject, LispObject]
+      for (sym <- symbols if reader.lambdas.containsKey(sym.value)) {
+        if (!compiled.containsKey(sym.value)) {
+          val self = reader.lambdas.get(sym.value).asInstanceOf[Symbol]
+          compiled.put(sym.value, runtime.compiler.compile(self, sym.value.asInstanceOf[Cell]))
+        }
+        sym.value = compiled.get(sym.value)
+      }
+      runtime
+    } catch {
+      case e: BufferUnderflowException => BinaryFormat.malformed(file + " is truncated")
+      case e: IOException => throw new LispException(Symbol.internalError, e)
+    } finally {
+      stream.close()
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package org.starlisp.core
+
+import java.util.concurrent._
+
+/*
+ * The value of an evaluation running on the fork/join pool of futures, as made by future.  Awaiting a
+ * future from a task of the pool runs other tasks meanwhile instead of blocking the worker, so futures
+ * may await futures.  Whatever the evaluation threw is thrown by await, as a LispException.
+ *
+ * Futures have a pool of their own, so that they can't starve the *Lisp kernels of Parallel's.  A
+ * future belongs to the runtime it evaluates in until it is done: cancelling the futures of a runtime
+ * (when an evaluation in it is interrupted, or it is reset) keeps those not started from starting, and
+ * interrupts the others as EvalServer interrupts a request.
+ */
+final class LispFuture(runtime: Runtime, body: () => LispObject) extends LispObject {
+  import LispFuture._
+
+  @volatile private var failure: Throwable = _
+
+  // the worker evaluating body while it does; guarded by this
+  private var worker: Thread = null
+  @volatile private var cancelled = false
+
+  private val task = new RecursiveTask[LispObject] {
+    def compute(): LispObject = {
+      val outer = current.get
+      if (!start()) {
+        failure = new LispException(Symbol.internalError, "Future cancelled.")
+        runtime.futures.remove(LispFuture.this)
+        return null
+      }
+      current.set(LispFuture.this)
+      try {
+        body()
+      } catch {
+        case e: Exception => failure = e; null
+        case e: StackOverflowError => failure = e; null
+      } finally {
+        finish()
+        current.set(outer)
+        // this ran inside a future awaiting it, which keeps its own cancellation
+        if ((outer ne null) && outer.cancelled) Thread.currentThread.interrupt()
+      }
+    }
+  }
+
+  runtime.futures.add(this)
+  if (inPool) task.fork() else pool.execute(task)
+
+  private def start(): Boolean = synchronized {
+    if (!cancelled) worker = Thread.currentThread
+    !cancelled
+  }
+
+  private def finish() {
+    synchronized {
+      worker = null
+      // a cancellation that came too late mustn't interrupt the next task of the worker
+      Thread.interrupted()
+    }
+    runtime.futures.remove(this)
+  }
+
+  def cancel() {
+    synchronized {
+      cancelled = true
+      if (worker ne null) worker.interrupt()
+    }
+  }
+
+  def isDone: Boolean = task.isDone
+
+  private def result(value: LispObject): LispObject = failure match {
+    case null => value
+    case e: LispException => throw e
+    case e: StackOverflowError => throw new LispException(Symbol.internalError, "Stack overflow in future.")
+    case e => throw new LispException(Symbol.internalError, e)
+  }
+
+  def await(): LispObject = {
+    if (inPool) return result(task.join())
+    try {
+      result(task.get())
+    } catch {
+      case e: InterruptedException => runtime.interrupted()
+      case e: ExecutionException => throw new LispException(Symbol.internalError, e.getCause)
+    }
+  }
+
+  // The value, or default if the evaluation takes longer than timeout ms
+  def await(timeout: Long, default: LispObject): LispObject = {
+    if (task.isDone) return await()
+    try {
+      result(task.get(timeout, TimeUnit.MILLISECONDS))
+    } catch {
+      case e: TimeoutException => default
+      case e: InterruptedException => runtime.interrupted()
+      case e: ExecutionException => throw new LispException(Symbol.internalError, e.getCause)
+    }
+  }
+
+  override def toString: String = if (isDone) "#<future done>" else "#<future>"
+}
+
+object LispFuture {
+
+  lazy val pool = new ForkJoinPool
+
+  // the future evaluating on this thread, if any
+  private val current = new ThreadLocal[LispFuture]
+
+  private def inPool: Boolean = Thread.currentThread match {
+    case worker: ForkJoinWorkerThread => worker.getPool eq pool
+    case _ => false
+  }
+
+  def evaluating: Boolean = current.get ne null
+
+  /*
+   * Evaluates the bodies in parallel, the last on the calling thread, and returns their values in
+   * order.  The futures left are cancelled once one of the bodies fails.
+   */
+  def all(runtime: Runtime, bodies: Array[() => LispObject]): Array[LispObject] = {
+    val values = new Array[LispObject](bodies.length)
+    if (bodies.length == 0) return values
+    val futures = new Array[LispFuture](bodies.length - 1)
+    try {
+      var i = 0
+      while (i < futures.length) {
+        futures(i) = new LispFuture(runtime, bodies(i))
+        i += 1
+      }
+      values(futures.length) = bodies(futures.length)()
+      i = 0
+      while (i < futures.length) {
+        values(i) = futures(i).await()
+        i += 1
+      }
+    } catch {
+      case e: Throwable => {
+        futures.foreach(future => if (future ne null) future.cancel())
+        throw e
+      }
+    }
+    values
+  }
+}
@@ -0,0 +1,95 @@
+package org.starlisp.core
+
+import java.util
+import java.util.concurrent.ConcurrentHashMap
+
+object LispHashTable {
+
+  // stand-ins for nil, which neither map kind can hold as a key and ConcurrentHashMap can't hold as a value
+  private object NilKey
+  private object NilValue extends LispObject
+
+  /*
+   * Keys of eq and eql tables that equals() would compare by structure: conses, strings, arrays and
+   * other objects compare by identity.  Symbols, fixnums and characters compare by value in all tables,
+   * other numbers compare by value within the same class as eql? does.
+   */
+  private final class IdentityKey(val obj: LispObject) {
+    override def hashCode: Int = System.identityHashCode(obj)
+    override def equals(other: Any): Boolean = other.isInstanceOf[IdentityKey] && (other.asInstanceOf[IdentityKey].obj eq obj)
+  }
+
+  private final class EqlKey(val obj: LispNumber) {
+    override def hashCode: Int = obj.hashCode
+    override def equals(other: Any): Boolean = other.isInstanceOf[EqlKey] && {
+      val o = other.asInstanceOf[EqlKey].obj
+      (o.getClass eq obj.getClass) && o == obj
+    }
+  }
+
+  def test(name: String): String = name match {
+    case "eq" | "eq?" => "eq"
+    case "eql" | "eql?" => "eql"
+    case "equal" | "equal?" => "equal"
+    case _ => throw new LispException(Symbol.internalError, "Unknown hash table test: " + name)
+  }
+}
+
+/*
+ * A hash table comparing its keys with eq, eql or equal.  Concurrent tables are backed by a
+ * ConcurrentHashMap: lookups don't lock and any number of threads may update them.
+ */
+class LispHashTable(val test: String = "eql", val concurrent: Boolean = false) extends LispObject {
+  import LispHashTable._
+
+  private val map: util.Map[AnyRef, LispObject] =
+    if (concurrent) new ConcurrentHashMap[AnyRef, LispObject] else new util.HashMap[AnyRef, LispObject]
+
+  private val byIdentity = test != "equal"
+
+  private def key(obj: LispObject): AnyRef = {
+    if (obj eq null) NilKey
+    else if (!byIdentity || obj.isInstanceOf[Symbol] || obj.isInstanceOf[LispFixnum] || obj.isInstanceOf[LispChar]) obj
+    else if (obj.isInstanceOf[LispNumber]) new EqlKey(obj.asInstanceOf[LispNumber])
+    else new IdentityKey(obj)
+  }
+
+  private def unkey(k: AnyRef): LispObject = k match {
+    case NilKey => null
+    case k: IdentityKey => k.obj
+    case k: EqlKey => k.obj
+    case k => k.asInstanceOf[LispObject]
+  }
+
+  def get(k: LispObject, default: LispObject): LispObject = {
+    val v = map.get(key(k))
+    if (v eq null) default else if (v eq NilValue) null else v
+  }
+
+  def put(k: LispObject, v: LispObject): LispObject = {
+    map.put(key(k), if (v eq null) NilValue else v)
+    v
+  }
+
+  def remove(k: LispObject): Boolean = map.remove(key(k)) ne null
+
+  def size: Int = map.size
+
+  def clear() {
+    map.clear()
+  }
+
+  // Iterates over a copy of the entries, so fn may change the table
+  def foreach(fn: (LispObject, LispObject) => Unit) {
+    val entries = map.entrySet.toArray
+    var i = 0
+    while (i < entries.length) {
+      val e = entries(i).asInstanceOf[util.Map.Entry[AnyRef, LispObject]]
+      val v = e.getValue
+      fn(unkey(e.getKey), if (v eq NilValue) null else v)
+      i += 1
+    }
+  }
+
+  override def toString: String = "#<hash-table %s %d >".format(test, size)
+}
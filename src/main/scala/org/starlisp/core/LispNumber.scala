@@ -1,30 +1,207 @@
 package org.starlisp.core
 
-import java.util.regex.Pattern
 import java.math.BigInteger
 
 object LispNumber {
 
-  val REGEX: Pattern = Pattern.compile("^[+-]?\\d*\\.?(?:\\d+e)?\\d+$")
+  // the powers of ten a double holds exactly
+  private val exactPowers = Array.tabulate(23)(i => math.pow(10, i))
+
+  private def digit(ch: Char) = ch >= '0' && ch <= '9'
+
+  /*
+   * The number buf[from, until) spells, or null if it isn't one: [+-]digits[.digits][e digits], with
+   * digits before the point or after it, and after an exponent.  One pass classifies the characters and
+   * accumulates the digits; only bignums and flonums a double can't compute exactly from its digits and
+   * power of ten are parsed from a String.
+   */
+  def scan(buf: Array[Char], from: Int, until: Int): LispNumber = {
+    var i = from
+    val negative = i < until && buf(i) == '-'
+    if (i < until && (buf(i) == '-' || buf(i) == '+')) i += 1
+    var mantissa = 0L
+    var exact = true
+    val intStart = i
+    while (i < until && digit(buf(i))) {
+      val d = buf(i) - '0'
+      if (mantissa <= (Long.MaxValue - d) / 10) mantissa = mantissa * 10 + d else exact = false
+      i += 1
+    }
+    val intDigits = i - intStart
+    var scale = 0
+    val point = i < until && buf(i) == '.'
+    if (point) {
+      i += 1
+      val fracStart = i
+      while (i < until && digit(buf(i))) {
+        val d = buf(i) - '0'
+        if (mantissa <= (Long.MaxValue - d) / 10) {
+          mantissa = mantissa * 10 + d
+          scale += 1
+        } else {
+          exact = false
+        }
+        i += 1
+      }
+      if (i == fracStart) return null
+    } else if (intDigits == 0) {
+      return null
+    }
+    var exponent = 0
+    val exp = i < until && buf(i) == 'e'
+    if (exp) {
+      i += 1
+      val expStart = i
+      while (i < until && digit(buf(i))) {
+        if (exponent < 100000) exponent = exponent * 10 + (buf(i) - '0')
+        i += 1
+      }
+      if (i == expStart) return null
+    }
+    if (i != until) return null
 
-  def isNumber(str: String): Boolean = REGEX.matcher(str).matches
+    if (!point && !exp) {
+      if (exact) return LispFixnum.create(if (negative) -mantissa else mantissa)
+      val n = BigInt(new String(buf, from, until - from))
+      if (n.isValidLong) LispFixnum.create(n.toLong) else new LispBigInt(n)
+    } else {
+      val e10 = exponent - scale
+      if (exact && mantissa < (1L << 53) && e10 >= -22 && e10 <= 22) {
+        val x = if (e10 >= 0) mantissa * exactPowers(e10) else mantissa / exactPowers(-e10)
+        new LispFlonum(if (negative) -x else x)
+      } else {
+        new LispFlonum(java.lang.Double.parseDouble(new String(buf, from, until - from)))
+      }
+    }
+  }
+
+  def isNumber(str: String): Boolean = scan(str.toCharArray, 0, str.length) ne null
 
   def tryParse(str: String): LispNumber = {
-    try {
-      new LispFixnum(str.toLong)
-    } catch {
-      case e: NumberFormatException => {
-        try {
-          new LispBigInt(BigInt(str))
-        }
-        catch {
-          case ee: NumberFormatException => {
-            new LispFlonum(str.toDouble)
-          }
-        }
-      }
+    val n = scan(str.toCharArray, 0, str.length)
+    if (n eq null) throw new NumberFormatException(str)
+    n
+  }
+
+  def number(obj: LispObject): LispNumber = obj match {
+    case n: LispNumber => n
+    case _ => throw new LispException(Symbol.internalError, "Not a number: " + obj)
+  }
+
+  // Arithmetic on two arguments of any type, pairs of fixnums are handled without dispatch
+  def add(a: LispObject, b: LispObject): LispNumber = {
+    if (a.isInstanceOf[LispFixnum] && b.isInstanceOf[LispFixnum])
+      LispFixnum.add(a.asInstanceOf[LispFixnum].n, b.asInstanceOf[LispFixnum].n)
+    else
+      number(a).add(number(b))
+  }
+  def sub(a: LispObject, b: LispObject): LispNumber = {
+    if (a.isInstanceOf[LispFixnum] && b.isInstanceOf[LispFixnum])
+      LispFixnum.sub(a.asInstanceOf[LispFixnum].n, b.asInstanceOf[LispFixnum].n)
+    else
+      number(a).sub(number(b))
+  }
+  def mul(a: LispObject, b: LispObject): LispNumber = {
+    if (a.isInstanceOf[LispFixnum] && b.isInstanceOf[LispFixnum])
+      LispFixnum.mul(a.asInstanceOf[LispFixnum].n, b.asInstanceOf[LispFixnum].n)
+    else
+      number(a).mul(number(b))
+  }
+  def div(a: LispObject, b: LispObject): LispNumber = {
+    if (a.isInstanceOf[LispFixnum] && b.isInstanceOf[LispFixnum])
+      LispFixnum.div(a.asInstanceOf[LispFixnum].n, b.asInstanceOf[LispFixnum].n)
+    else
+      number(a).div(number(b))
+  }
+
+  def compare(a: LispObject, b: LispObject): Int = {
+    if (a.isInstanceOf[LispFixnum] && b.isInstanceOf[LispFixnum]) {
+      val x = a.asInstanceOf[LispFixnum].n
+      val y = b.asInstanceOf[LispFixnum].n
+      if (x < y) -1 else if (x == y) 0 else 1
+    } else {
+      number(a).sub(number(b)).signum
     }
   }
+
+  // = has always answered nil rather than failed for arguments that aren't numbers
+  def numEq(a: LispObject, b: LispObject): Boolean = {
+    if (a.isInstanceOf[LispFixnum] && b.isInstanceOf[LispFixnum])
+      a.asInstanceOf[LispFixnum].n == b.asInstanceOf[LispFixnum].n
+    else if (a.isInstanceOf[LispNumber] && b.isInstanceOf[LispNumber])
+      compare(a, b) == 0
+    else
+      a == b
+  }
+}
+
+/*
+ * + and *: any number of arguments folded from the identity of the operation.
+ */
+abstract class NumberFold(name: String, identity: LispNumber) extends Subr(name) {
+  def op(a: LispObject, b: LispObject): LispNumber
+
+  override def call0(env: Environment): LispObject = identity
+  override def call1(env: Environment, a: LispObject): LispObject = LispNumber.number(a)
+  override def call2(env: Environment, a: LispObject, b: LispObject): LispObject = op(a, b)
+  override def call3(env: Environment, a: LispObject, b: LispObject, c: LispObject): LispObject = op(op(a, b), c)
+  def callN(env: Environment, args: Array[LispObject]): LispObject = {
+    var acc: LispObject = identity
+    var i = 0
+    while (i < args.length) {
+      acc = op(acc, args(i))
+      i += 1
+    }
+    acc
+  }
+}
+
+/*
+ * - and /: the first argument folded with the rest, a single argument is applied to the identity.
+ */
+abstract class NumberReduction(name: String, identity: LispNumber) extends Subr(name, 1) {
+  def op(a: LispObject, b: LispObject): LispNumber
+
+  override def call0(env: Environment): LispObject = tooFew
+  override def call1(env: Environment, a: LispObject): LispObject = op(identity, a)
+  override def call2(env: Environment, a: LispObject, b: LispObject): LispObject = op(a, b)
+  override def call3(env: Environment, a: LispObject, b: LispObject, c: LispObject): LispObject = op(op(a, b), c)
+  def callN(env: Environment, args: Array[LispObject]): LispObject = {
+    if (args.length == 0) return tooFew
+    if (args.length == 1) return op(identity, args(0))
+    var acc: LispObject = args(0)
+    var i = 1
+    while (i < args.length) {
+      acc = op(acc, args(i))
+      i += 1
+    }
+    acc
+  }
+}
+
+/*
+ * = < > <= >=: true when the test holds for every pair of neighbouring arguments.
+ */
+abstract class NumberComparison(name: String) extends Subr(name, 1) {
+  def test(a: LispObject, b: LispObject): Boolean
+
+  private def truth(b: Boolean): LispObject = if (b) Symbol.t else null
+
+  override def call0(env: Environment): LispObject = tooFew
+  override def call1(env: Environment, a: LispObject): LispObject = { LispNumber.number(a); Symbol.t }
+  override def call2(env: Environment, a: LispObject, b: LispObject): LispObject = truth(test(a, b))
+  override def call3(env: Environment, a: LispObject, b: LispObject, c: LispObject): LispObject = {
+    truth(test(a, b) && test(b, c))
+  }
+  def callN(env: Environment, args: Array[LispObject]): LispObject = {
+    if (args.length == 0) return tooFew
+    var i = 1
+    while (i < args.length) {
+      if (!test(args(i - 1), args(i))) return null
+      i += 1
+    }
+    call1(env, args(0))
+  }
 }
 
 abstract class LispNumber extends LispObject {
@@ -33,6 +210,7 @@ abstract class LispNumber extends LispObject {
   def mul(n: LispNumber) : LispNumber
   def div(n: LispNumber) : LispNumber
   def negP: Boolean
+  def signum: Int
 
   def promote(n: LispNumber): LispNumber
 
@@ -78,6 +256,7 @@ class LispBigDecimal(val n: BigDecimal) extends LispNumber {
       nbr.promote(this).div(promote(nbr))
   }
   def negP = n.signum == -1
+  def signum = n.signum
 
   def promote(n: LispNumber) = n match {
     case o: LispBigDecimal => o
@@ -105,29 +284,30 @@ class LispBigInt(val n: BigInt) extends LispInteger {
 
   override def add(nbr: LispNumber) = {
     if (nbr.isInstanceOf[LispBigInt])
-      new LispBigInt(n + nbr.asInstanceOf[LispBigInt].n )
+      LispFixnum.normalize(n + nbr.asInstanceOf[LispBigInt].n)
     else
       nbr.promote(this).add(promote(nbr))
   }
   override def sub(nbr: LispNumber) = {
     if (nbr.isInstanceOf[LispBigInt])
-      new LispBigInt(n - nbr.asInstanceOf[LispBigInt].n )
+      LispFixnum.normalize(n - nbr.asInstanceOf[LispBigInt].n)
     else
       nbr.promote(this).sub(promote(nbr))
   }
   override def mul(nbr: LispNumber) = {
     if (nbr.isInstanceOf[LispBigInt])
-      new LispBigInt(n * nbr.asInstanceOf[LispBigInt].n )
+      LispFixnum.normalize(n * nbr.asInstanceOf[LispBigInt].n)
     else
       nbr.promote(this).mul(promote(nbr))
   }
   override def div(nbr: LispNumber) = {
     if (nbr.isInstanceOf[LispBigInt])
-      new LispBigInt(n / nbr.asInstanceOf[LispBigInt].n )
+      LispFixnum.normalize(n / nbr.asInstanceOf[LispBigInt].n)
     else
       nbr.promote(this).div(promote(nbr))
   }
   def negP: Boolean = n.signum == -1
+  def signum: Int = n.signum
   def ash(nbr: LispInteger) = new LispBigInt(n << nbr.toJavaInt)
   def mod(nbr: LispInteger): LispInteger = new LispBigInt(n % nbr.toBigInt)
 
@@ -181,6 +361,7 @@ class LispFlonum(val n: Double) extends LispNumber {
       nbr.promote(this).div(promote(nbr))
   }
   def negP: Boolean = n < 0
+  def signum: Int = if (n < 0) -1 else if (n > 0) 1 else 0
 
   def promote(n: LispNumber) = n match {
     case o: LispBigInt => new LispBigDecimal(o.toBigDecimal)
@@ -208,59 +389,71 @@ object LispFixnum {
 
   private val minCached = -32768
   private val maxCached = 32768
-  private val cache: Array[LispFixnum] = new Array[LispFixnum](maxCached - minCached + 1)
+  // filled up front, so threads of different runtimes only ever read it
+  private val cache: Array[LispFixnum] = Array.tabulate(maxCached - minCached + 1)(i => new LispFixnum(i + minCached))
 
   def create(i: Long): LispFixnum = {
     if (minCached <= i && i <= maxCached) {
-      val offset = i.toInt - minCached
-      var n = cache(offset)
-      if (n eq null) { n = new LispFixnum(i); cache(offset) = n }
-      n
+      cache(i.toInt - minCached)
     } else {
       new LispFixnum(i)
     }
   }
+
+  // Exact arithmetic on longs, results that don't fit are computed again as bignums
+  def add(x: Long, y: Long): LispNumber = {
+    val r = x + y
+    if (((x ^ r) & (y ^ r)) < 0) new LispBigInt(BigInt(x) + BigInt(y)) else create(r)
+  }
+  def sub(x: Long, y: Long): LispNumber = {
+    val r = x - y
+    if (((x ^ y) & (x ^ r)) < 0) new LispBigInt(BigInt(x) - BigInt(y)) else create(r)
+  }
+  def mul(x: Long, y: Long): LispNumber = {
+    val r = x * y
+    // operands of 31 bits or less can't overflow, otherwise check the product by dividing it back
+    if (((math.abs(x) | math.abs(y)) >>> 31) != 0 &&
+        ((y != 0 && r / y != x) || (x == Long.MinValue && y == -1)))
+      new LispBigInt(BigInt(x) * BigInt(y))
+    else
+      create(r)
+  }
+  def div(x: Long, y: Long): LispNumber = {
+    if (y == 0) throw new LispException(Symbol.internalError, "Division by zero")
+    if (x == Long.MinValue && y == -1) new LispBigInt(-BigInt(x)) else create(x / y)
+  }
+
+  def normalize(n: BigInt): LispInteger = if (n.bitLength < 64) create(n.toLong) else new LispBigInt(n)
 }
 
 class LispFixnum(val n: Long) extends LispInteger {
 
   override def add(nbr: LispNumber) = {
-    if (nbr.isInstanceOf[LispFixnum]) {
-      val b = nbr.asInstanceOf[LispFixnum]
-      val res = LispFixnum.create(n + b.n)
-      if (((n ^ res.n) & (b.n ^ res.n)) < 0) new LispBigInt(toBigInt + b.toBigInt) else res
-    } else {
+    if (nbr.isInstanceOf[LispFixnum])
+      LispFixnum.add(n, nbr.asInstanceOf[LispFixnum].n)
+    else
       nbr.promote(this).add(nbr) // skip promote(nbr) since fixnum is at the bottom
-    }
   }
   override def sub(nbr: LispNumber) = {
-    if (nbr.isInstanceOf[LispFixnum]) {
-      val b = nbr.asInstanceOf[LispFixnum]
-      val res: LispFixnum = LispFixnum.create(n - b.n)
-      if (((n ^ res.n) & (-b.n ^ res.n)) < 0) new LispBigInt(toBigInt - b.toBigInt) else res
-    } else {
+    if (nbr.isInstanceOf[LispFixnum])
+      LispFixnum.sub(n, nbr.asInstanceOf[LispFixnum].n)
+    else
       nbr.promote(this).sub(nbr) // skip promote(nbr) since fixnum is at the bottom
-    }
   }
   override def mul(nbr: LispNumber) = {
-    if (nbr.isInstanceOf[LispFixnum]) {
-      import java.lang.Long
-      val b = nbr.asInstanceOf[LispFixnum]
-      if (Long.numberOfLeadingZeros(math.abs(n)) + Long.numberOfLeadingZeros(math.abs(b.n)) < 65)
-        new LispBigInt(toBigInt * b.toBigInt)
-      else
-        LispFixnum.create(n * b.n)
-    } else {
+    if (nbr.isInstanceOf[LispFixnum])
+      LispFixnum.mul(n, nbr.asInstanceOf[LispFixnum].n)
+    else
       nbr.promote(this).mul(nbr) // skip promote(nbr) since fixnum is at the bottom
-    }
   }
   override def div(nbr: LispNumber) = {
     if (nbr.isInstanceOf[LispFixnum])
-      LispFixnum.create(n / nbr.asInstanceOf[LispFixnum].n )
+      LispFixnum.div(n, nbr.asInstanceOf[LispFixnum].n)
     else
       nbr.promote(this).div(nbr) // skip promote(nbr) since fixnum is at the bottom
   }
   def negP: Boolean = n < 0
+  def signum: Int = java.lang.Long.signum(n)
   def mod(nbr: LispInteger): LispInteger = LispFixnum.create(n % nbr.toJavaLong)
   def ash(nbr: LispInteger): LispInteger = {
     val x = nbr.toJavaLong
@@ -1,8 +1,7 @@
 package org.starlisp.core
 
-import collection.mutable
+import java.util.concurrent.ConcurrentHashMap
 import java.util
-import collection.mutable.ListBuffer
 
 object LispObject {
   def toStringOrNil(obj: LispObject): String = Option(obj).getOrElse("nil").toString
@@ -12,40 +11,75 @@ class LispObject {
   def as[T] = this.asInstanceOf[T]
 }
 
+/*
+ * Evaluates the forms a Procedure receives unevaluated; procedures call it like a function, eval(form, env).
+ * Passing the Runtime itself avoids creating a function object per call.
+ */
+trait Evaluator {
+  def apply(obj: LispObject, env: Environment): LispObject
+}
+
 abstract class Procedure(val name : String, val minArgs: Int = 0, val maxArgs: Int = Integer.MAX_VALUE) extends LispObject {
   def this(name: String, numArgs: Int) = this(name, numArgs, numArgs)
 
   protected def error(msg: String): LispObject = throw new LispException(Symbol.internalError, msg)
 
-  def apply(env: Environment, list: Cell, eval: ((LispObject, Environment) => LispObject)): LispObject
+  def apply(env: Environment, list: Cell, eval: Evaluator): LispObject
 
   override def toString: String = "#<subr %s >".format(name)
 }
 
-abstract class LispFn(name : String, minArgs: Int = 0, maxArgs: Int = Integer.MAX_VALUE)
+/*
+ * A procedure that evaluates all of its arguments.  Callers holding the evaluated arguments use the
+ * entry point for their number, up to four are passed without building a list or an array of them.
+ */
+abstract class Subr(name : String, minArgs: Int = 0, maxArgs: Int = Integer.MAX_VALUE)
   extends Procedure(name, minArgs, maxArgs)
 {
-  protected def evlisArray(list: Cell, env: Environment, length: Int, eval: ((LispObject, Environment) => LispObject)): (Array[LispObject],Int) = {
-    if ((list eq null) || (length == 0)) {
-      (Array(), 0)
-    } else {
-      val res = new ListBuffer[LispObject]
-      var c = list
-      while (c != null) {
-        res.append(eval(c.car, env))
-        c = c.rest
-      }
-      (res.toArray, res.size)
+  def call0(env: Environment): LispObject = callN(env, new Array[LispObject](0))
+  def call1(env: Environment, a: LispObject): LispObject = callN(env, Array(a))
+  def call2(env: Environment, a: LispObject, b: LispObject): LispObject = callN(env, Array(a, b))
+  def call3(env: Environment, a: LispObject, b: LispObject, c: LispObject): LispObject = callN(env, Array(a, b, c))
+  def call4(env: Environment, a: LispObject, b: LispObject, c: LispObject, d: LispObject): LispObject = callN(env, Array(a, b, c, d))
+  def callN(env: Environment, args: Array[LispObject]): LispObject
+
+  protected def tooFew: LispObject = error("Too few args when calling procedure: " + toString)
+
+  def apply(env: Environment, head: Cell, eval: Evaluator): LispObject = {
+    var list = head.rest
+    if (list eq null) return call0(env)
+    val a = eval(list.car, env)
+    list = list.rest
+    if (list eq null) return call1(env, a)
+    val b = eval(list.car, env)
+    list = list.rest
+    if (list eq null) return call2(env, a, b)
+    val c = eval(list.car, env)
+    list = list.rest
+    if (list eq null) return call3(env, a, b, c)
+    val d = eval(list.car, env)
+    list = list.rest
+    if (list eq null) return call4(env, a, b, c, d)
+    val args = new Array[LispObject](4 + list.length)
+    args(0) = a
+    args(1) = b
+    args(2) = c
+    args(3) = d
+    var i = 4
+    while (list ne null) {
+      args(i) = eval(list.car, env)
+      list = list.rest
+      i += 1
     }
+    callN(env, args)
   }
+}
 
-  def apply(env: Environment, head: Cell, eval: ((LispObject, Environment) => LispObject)): LispObject = {
-    val list = head.rest
-    val (args, foundCount) = Option(list) match {
-      case Some(argsList) => evlisArray(list, env, maxArgs, eval)
-      case None => (Array[LispObject](), 0)
-    }
-    if (foundCount < minArgs) error("Too few args when calling procedure: " + toString)
+abstract class LispFn(name : String, minArgs: Int = 0, maxArgs: Int = Integer.MAX_VALUE)
+  extends Subr(name, minArgs, maxArgs)
+{
+  def callN(env: Environment, args: Array[LispObject]): LispObject = {
+    if (args.length < minArgs) tooFew
     apply(env, args)
   }
 
@@ -53,32 +87,31 @@ abstract class LispFn(name : String, minArgs: Int = 0, maxArgs: Int = Integer.MA
   def apply(env: Environment, objects: Array[LispObject]): LispObject = apply(objects)
 }
 
-abstract class LispFn0[A <: LispObject](name : String) extends Procedure(name, 1, 1) {
-  def apply(env: Environment, list: Cell, eval: ((LispObject, Environment) => LispObject)): LispObject = {
-    apply()
-  }
+abstract class LispFn0[A <: LispObject](name : String) extends Subr(name, 1, 1) {
+  override def call0(env: Environment): LispObject = apply()
+  def callN(env: Environment, args: Array[LispObject]): LispObject = apply()
 
   def apply(): LispObject
 }
 
-abstract class LispFn1[A <: LispObject](name : String) extends Procedure(name, 1, 1) {
-  def apply(env: Environment, head: Cell, eval: ((LispObject, Environment) => LispObject)): LispObject = {
-    val list = head.rest
-    if (list eq null) error("Too few args when calling procedure: " + toString)
-    apply(eval(list.car, env).asInstanceOf[A])
+abstract class LispFn1[A <: LispObject](name : String) extends Subr(name, 1, 1) {
+  override def call0(env: Environment): LispObject = tooFew
+  override def call1(env: Environment, a: LispObject): LispObject = apply(a.asInstanceOf[A])
+  def callN(env: Environment, args: Array[LispObject]): LispObject = {
+    if (args.length < 1) tooFew
+    apply(args(0).asInstanceOf[A])
   }
 
   def apply(a: A): LispObject
 }
 
-abstract class LispFn2[A <: LispObject,B <: LispObject](name: String) extends Procedure(name, 2, 2) {
-  def apply(env: Environment, head: Cell, eval: ((LispObject, Environment) => LispObject)): LispObject = {
-    val list = head.rest
-    if (list eq null) error("Too few args when calling procedure: " + toString)
-    val a = list.car
-    if (list.rest eq null) error("Too few args when calling procedure: " + toString)
-    val b = list.rest.first
-    apply(eval(a, env).asInstanceOf[A], eval(b, env).asInstanceOf[B])
+abstract class LispFn2[A <: LispObject,B <: LispObject](name: String) extends Subr(name, 2, 2) {
+  override def call0(env: Environment): LispObject = tooFew
+  override def call1(env: Environment, a: LispObject): LispObject = tooFew
+  override def call2(env: Environment, a: LispObject, b: LispObject): LispObject = apply(a.asInstanceOf[A], b.asInstanceOf[B])
+  def callN(env: Environment, args: Array[LispObject]): LispObject = {
+    if (args.length < 2) tooFew
+    apply(args(0).asInstanceOf[A], args(1).asInstanceOf[B])
   }
 
   def apply(a: A, b: B): LispObject
@@ -87,23 +120,38 @@ abstract class LispFn2[A <: LispObject,B <: LispObject](name: String) extends Pr
 // LispFnPair - same as LispFn2, but using the same types for A and B
 abstract class LispFnP[A <: LispObject](name : String = "") extends LispFn2[A,A](name)
 
-abstract class LispFn3[A <: LispObject,B <: LispObject,C <: LispObject](name : String = "") extends Procedure(name, 3, 3) {
-  def apply(env: Environment, head: Cell, eval: ((LispObject, Environment) => LispObject)): LispObject = {
-    val list = head.rest
-    if (list eq null) error("Too few args when calling procedure: " + toString)
-    val a = list.car
-    if (list.rest eq null) error("Too few args when calling procedure: " + toString)
-    val b = list.rest.first
-    if (list.rest.rest eq null) error("Too few args when calling procedure: " + toString)
-    val c = list.rest.rest.car
-    apply(eval(a, env).asInstanceOf[A], eval(b, env).asInstanceOf[B], eval(c, env).asInstanceOf[C])
+abstract class LispFn3[A <: LispObject,B <: LispObject,C <: LispObject](name : String = "") extends Subr(name, 3, 3) {
+  override def call0(env: Environment): LispObject = tooFew
+  override def call1(env: Environment, a: LispObject): LispObject = tooFew
+  override def call2(env: Environment, a: LispObject, b: LispObject): LispObject = tooFew
+  override def call3(env: Environment, a: LispObject, b: LispObject, c: LispObject): LispObject = {
+    apply(a.asInstanceOf[A], b.asInstanceOf[B], c.asInstanceOf[C])
+  }
+  def callN(env: Environment, args: Array[LispObject]): LispObject = {
+    if (args.length < 3) tooFew
+    apply(args(0).asInstanceOf[A], args(1).asInstanceOf[B], args(2).asInstanceOf[C])
   }
 
   def apply(a: A, b: B, c: C): LispObject
 }
 
+object Cell {
+  def list(objects: Array[LispObject], from: Int = 0): Cell = {
+    var list: Cell = null
+    var i = objects.length - 1
+    while (i >= from) {
+      list = new Cell(objects(i), list)
+      i -= 1
+    }
+    list
+  }
+}
+
 class Cell(var car: LispObject = null, var cdr: LispObject = null) extends LispObject {
 
+  // analyzed form of this list when it is evaluated as code, see Analyzer
+  private[core] var node: Node = null
+
   def Car[T <: LispObject](): T = this.car.asInstanceOf[T]
   def Car(car: LispObject) : LispObject = { this.car = car; car }
 
@@ -173,7 +221,57 @@ class Cell(var car: LispObject = null, var cdr: LispObject = null) extends LispO
   }
 }
 
-class LispArray(protected val ar: Array[LispObject]) extends LispObject {
+/*
+ * One dimensional arrays.  Subclasses decide how the elements are stored, aref and aset always take
+ * and return Lisp objects.
+ */
+abstract class LispArray extends LispObject {
+
+  def length: Int
+
+  def aref(idx: Int): LispObject
+
+  def aset(idx: Int, obj: LispObject): LispObject
+
+  def fill(obj: LispObject, from: Int, to: Int) {
+    var i = from
+    while (i < to) {
+      aset(i, obj)
+      i += 1
+    }
+  }
+
+  // Subclasses copy between arrays of their own kind with System.arraycopy
+  def copy(from: Int, dst: LispArray, to: Int, count: Int) {
+    if ((dst eq this) && from < to) {
+      var i = count - 1
+      while (i >= 0) {
+        dst.aset(to + i, aref(from + i))
+        i -= 1
+      }
+    } else {
+      var i = 0
+      while (i < count) {
+        dst.aset(to + i, aref(from + i))
+        i += 1
+      }
+    }
+  }
+
+  override def toString: String = {
+    val sb: StringBuffer = new StringBuffer
+    sb.append("#(")
+    for (i <- 0 until length) {
+      sb.append(LispObject.toStringOrNil(aref(i)))
+      sb.append(' ')
+    }
+    sb.setLength(sb.length - 1)
+    sb.append(')')
+    sb.toString
+  }
+}
+
+class LispVector(protected val ar: Array[LispObject]) extends LispArray {
 
   def this(length: Int) = this(new Array[LispObject](length))
   def this(list: Cell) = this(list.toArray)
@@ -182,7 +280,7 @@ class LispArray(protected val ar: Array[LispObject]) extends LispObject {
 
   override def hashCode: Int = util.Arrays.deepHashCode(ar.asInstanceOf[Array[Object]])
   override def equals(obj: Any): Boolean = {
-    obj.isInstanceOf[LispArray] && util.Arrays.deepEquals(ar.asInstanceOf[Array[Object]], (obj.asInstanceOf[LispArray]).ar.asInstanceOf[Array[Object]])
+    obj.isInstanceOf[LispVector] && util.Arrays.deepEquals(ar.asInstanceOf[Array[Object]], (obj.asInstanceOf[LispVector]).ar.asInstanceOf[Array[Object]])
   }
 
   def aref(idx: Int): LispObject = ar(idx)
@@ -193,16 +291,115 @@ class LispArray(protected val ar: Array[LispObject]) extends LispObject {
     res
   }
 
-  override def toString: String = {
-    val sb: StringBuffer = new StringBuffer
-    sb.append("#(")
-    for (o <- ar) {
-      sb.append(LispObject.toStringOrNil(o))
-      sb.append(' ')
-    }
-    sb.setLength(sb.length - 1)
-    sb.append(')')
-    sb.toString
+  override def fill(obj: LispObject, from: Int, to: Int) {
+    util.Arrays.fill(ar.asInstanceOf[Array[Object]], from, to, obj)
+  }
+
+  override def copy(from: Int, dst: LispArray, to: Int, count: Int) {
+    if (dst.isInstanceOf[LispVector]) System.arraycopy(ar, from, dst.asInstanceOf[LispVector].ar, to, count)
+    else super.copy(from, dst, to, count)
+  }
+}
+
+/*
+ * Arrays of unboxed numbers, made by (make-array n :element-type 'fixnum), 'flonum or 'byte.
+ */
+class LispFixnumArray(val ar: Array[Long]) extends LispArray {
+
+  def length: Int = ar.length
+
+  def aref(idx: Int): LispObject = LispFixnum.create(ar(idx))
+
+  def aset(idx: Int, obj: LispObject): LispObject = {
+    val res = aref(idx)
+    ar(idx) = LispFixnumArray.element(obj)
+    res
+  }
+
+  override def fill(obj: LispObject, from: Int, to: Int) {
+    util.Arrays.fill(ar, from, to, LispFixnumArray.element(obj))
+  }
+
+  override def copy(from: Int, dst: LispArray, to: Int, count: Int) {
+    if (dst.isInstanceOf[LispFixnumArray]) System.arraycopy(ar, from, dst.asInstanceOf[LispFixnumArray].ar, to, count)
+    else super.copy(from, dst, to, count)
+  }
+
+  override def hashCode: Int = util.Arrays.hashCode(ar)
+  override def equals(obj: Any): Boolean = obj.isInstanceOf[LispFixnumArray] && util.Arrays.equals(ar, obj.asInstanceOf[LispFixnumArray].ar)
+}
+
+object LispFixnumArray {
+  def element(obj: LispObject): Long = {
+    if (!obj.isInstanceOf[LispFixnum]) throw new LispException(Symbol.internalError, "Only fixnums may be in a fixnum array.")
+    obj.asInstanceOf[LispFixnum].n
+  }
+}
+
+class LispFlonumArray(val ar: Array[Double]) extends LispArray {
+
+  def length: Int = ar.length
+
+  def aref(idx: Int): LispObject = new LispFlonum(ar(idx))
+
+  def aset(idx: Int, obj: LispObject): LispObject = {
+    val res = aref(idx)
+    ar(idx) = LispFlonumArray.element(obj)
+    res
+  }
+
+  override def fill(obj: LispObject, from: Int, to: Int) {
+    util.Arrays.fill(ar, from, to, LispFlonumArray.element(obj))
+  }
+
+  override def copy(from: Int, dst: LispArray, to: Int, count: Int) {
+    if (dst.isInstanceOf[LispFlonumArray]) System.arraycopy(ar, from, dst.asInstanceOf[LispFlonumArray].ar, to, count)
+    else super.copy(from, dst, to, count)
+  }
+
+  override def hashCode: Int = util.Arrays.hashCode(ar)
+  override def equals(obj: Any): Boolean = obj.isInstanceOf[LispFlonumArray] && util.Arrays.equals(ar, obj.asInstanceOf[LispFlonumArray].ar)
+}
+
+object LispFlonumArray {
+  // any number is stored as its double value
+  def element(obj: LispObject): Double = {
+    if (!obj.isInstanceOf[LispNumber]) throw new LispException(Symbol.internalError, "Only numbers may be in a flonum array.")
+    obj.asInstanceOf[LispNumber].toJavaDouble
+  }
+}
+
+class LispByteArray(val ar: Array[Byte]) extends LispArray {
+
+  def length: Int = ar.length
+
+  def aref(idx: Int): LispObject = LispFixnum.create(ar(idx) & 0xff)
+
+  def aset(idx: Int, obj: LispObject): LispObject = {
+    val res = aref(idx)
+    ar(idx) = LispByteArray.element(obj)
+    res
+  }
+
+  override def fill(obj: LispObject, from: Int, to: Int) {
+    util.Arrays.fill(ar, from, to, LispByteArray.element(obj))
+  }
+
+  override def copy(from: Int, dst: LispArray, to: Int, count: Int) {
+    if (dst.isInstanceOf[LispByteArray]) System.arraycopy(ar, from, dst.asInstanceOf[LispByteArray].ar, to, count)
+    else super.copy(from, dst, to, count)
+  }
+
+  override def hashCode: Int = util.Arrays.hashCode(ar)
+  override def equals(obj: Any): Boolean = obj.isInstanceOf[LispByteArray] && util.Arrays.equals(ar, obj.asInstanceOf[LispByteArray].ar)
+}
+
+object LispByteArray {
+  // bytes are unsigned, 0 to 255
+  def element(obj: LispObject): Byte = {
+    if (!obj.isInstanceOf[LispFixnum] || (obj.asInstanceOf[LispFixnum].n & ~0xffL) != 0)
+      throw new LispException(Symbol.internalError, "Only fixnums from 0 to 255 may be in a byte array.")
+    obj.asInstanceOf[LispFixnum].n.toByte
   }
 }
 
@@ -213,12 +410,18 @@ object LispChar {
     lc
   }
 
-  val cache = new mutable.HashMap[Char, LispChar]()
+  private val cache = new ConcurrentHashMap[Character, LispChar]
   def create(ch: Char) = {
     if (ch < 256) {
       lowCache(ch)
     } else {
-      cache.getOrElseUpdate(ch, new LispChar(ch))
+      val c = cache.get(ch)
+      if (c ne null) {
+        c
+      } else {
+        val prev = cache.putIfAbsent(ch, new LispChar(ch))
+        if (prev ne null) prev else cache.get(ch)
+      }
     }
   }
 }
@@ -229,38 +432,43 @@ class LispChar(val ch: Char = 0) extends LispObject {
   override def toString = "#\\%c".format(ch)
 }
 
-class LispString(length: Int) extends LispArray(length) {
+/*
+ * The characters live in a java.lang.String until the first aset copies them into a char array.  The
+ * String is rebuilt from the array when asked for again, and kept until the next aset.
+ */
+class LispString private (private var string: String, private var chars: Array[Char]) extends LispArray {
 
-  def this(arr: String) = {
-    this(arr.length)
-    (0 until length).foreach(idx => ar(idx) = LispChar.create(arr.charAt(idx)))
-  }
+  def this(str: String) = this(str, null)
 
-  def this(arr: Array[Char], length: Int) = {
-    this(length)
-    (0 until length).foreach(idx => ar(idx) = LispChar.create(arr(idx)))
-  }
+  def this(arr: Array[Char], length: Int) = this(new String(arr, 0, length), null)
 
-  def this(arr: Array[Char]) = {
-    this(arr, arr.length)
-  }
+  def this(arr: Array[Char]) = this(arr, arr.length)
 
   def this(length: Int, ch: LispChar) = {
-    this(length)
-    (0 until length).foreach(ar(_) = ch)
+    this(null, new Array[Char](length))
+    util.Arrays.fill(chars, ch.ch)
   }
 
-  override def aset(idx: Int, obj: LispObject): LispObject = {
+  def length: Int = if (chars ne null) chars.length else string.length
+
+  def aref(idx: Int): LispObject = LispChar.create(if (chars ne null) chars(idx) else string.charAt(idx))
+
+  def aset(idx: Int, obj: LispObject): LispObject = {
     if (!(obj.isInstanceOf[LispChar])) throw new LispException(Symbol.internalError, "Only Char may be in a string.")
-    super.aset(idx, obj)
+    if (chars eq null) chars = string.toCharArray
+    val res = LispChar.create(chars(idx))
+    chars(idx) = (obj.asInstanceOf[LispChar]).ch
+    string = null
+    res
   }
 
   def toJavaString: String = {
-    val sb: StringBuffer = new StringBuffer
-    for (o <- ar) sb.append((o.asInstanceOf[LispChar]).ch)
-    sb.toString
+    if (string eq null) string = new String(chars)
+    string
   }
 
+  override def hashCode: Int = toJavaString.hashCode
+  override def equals(obj: Any): Boolean = obj.isInstanceOf[LispString] && (obj.asInstanceOf[LispString]).toJavaString == toJavaString
+
   override def toString: String = "\"%s\"".format(toJavaString)
 }
-
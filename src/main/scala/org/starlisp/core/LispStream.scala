@@ -58,6 +58,63 @@ class LispOutputStreamWriter extends LispObject with LispOutputStream {
   override def toString: String = "#<" + super.toString + ">"
 }
 
+/*
+ * Streams of objects in the binary format of BinaryFormat, written and read with write-binary and
+ * read-binary.  Each object is a message of its own: structure is shared within an object, while
+ * symbol names are written once per stream.  Input is decoded straight from a buffer, a mapped file
+ * or the bytes of a byte array, without copying.
+ */
+class LispBinaryOutputStream(runtime: Runtime, out: OutputStream) extends LispObject with LispStream {
+
+  private val writer = new BinaryWriter(runtime, out)
+  private var open = true
+
+  def write(obj: LispObject) {
+    writer.write(obj)
+    writer.forgetObjects()
+  }
+
+  def flush() {
+    writer.flush()
+  }
+
+  def close: Boolean = {
+    if (open) {
+      try writer.flush() finally out.close()
+      open = false
+      true
+    } else {
+      false
+    }
+  }
+
+  def eof: Boolean = false
+
+  override def toString: String = "#<binary-output-stream>"
+}
+
+class LispBinaryInputStream(runtime: Runtime, in: java.nio.ByteBuffer, env: Environment) extends LispObject with LispStream {
+
+  private val reader = new BinaryReader(runtime, in, env)
+
+  def read: LispObject = {
+    if (!in.hasRemaining) return null
+    try {
+      reader.read()
+    } catch {
+      case e: java.nio.BufferUnderflowException => BinaryFormat.malformed("truncated object")
+    } finally {
+      reader.forgetObjects()
+    }
+  }
+
+  def close: Boolean = true
+
+  def eof: Boolean = !in.hasRemaining
+
+  override def toString: String = "#<binary-input-stream>"
+}
+
 class StringInputStream(env: Environment, string: String) extends LispInputStreamReader(env, new StringReader(string)) {}
 
 class StringOutputStream(writer: StringWriter = new StringWriter) extends LispOutputStreamWriter(new PrintWriter(writer)) {
@@ -87,6 +144,9 @@ class LispInputStreamReader(env: Environment, in: Reader) extends LispObject wit
   }
 
   def eof = tokenizer.ttype == StreamTokenizer.TT_EOF
+
+  // where the last token read starts, for error messages
+  def position: String = "line %d, column %d".format(tokenizer.lineno, tokenizer.column)
   def readChar = LispChar.create(tokenizer.readChar())
   def close: Boolean = {
     in.close()
@@ -108,9 +168,9 @@ class LispInputStreamReader(env: Environment, in: Reader) extends LispObject wit
         null
       }
       case '\\' => LispChar.create(tokenizer.readChar())
-      case '(' => new LispArray(readList().asInstanceOf[Cell])
+      case '(' => new LispVector(readList().asInstanceOf[Cell])
       case '\'' => read
-      case ch => throw new LispException("dispatch syntax error for: " + String.valueOf(ch))
+      case ch => throw new LispException("dispatch syntax error for: %s at %s".format(String.valueOf(ch), position))
     }
   }
 
@@ -137,16 +197,24 @@ class LispInputStreamReader(env: Environment, in: Reader) extends LispObject wit
     }
   }
 
+  // a Frame finds copies of its bindings, which can't be kept
+  private val symbols = if (env.isInstanceOf[Frame]) null else new SymbolTable(env)
+
   def readWord(): LispObject = {
-    val str = String.copyValueOf(tokenizer.buf, 0, tokenizer.bufLimit)
-    if (str.length == 1 && str.equals(".")) {
+    val buf = tokenizer.buf
+    val length = tokenizer.bufLimit
+    if (length == 1 && buf(0) == '.') {
       dottedCdr.obj = read
       dottedCdr
     } else {
-      if (LispNumber.isNumber(str))
-        LispNumber.tryParse(str)
-      else
-        env.find(str).getOrElse(new Symbol(str))
+      val number = LispNumber.scan(buf, 0, length)
+      if (number ne null) number
+      else if (symbols ne null) symbols.find(buf, length)
+      else {
+        val name = new String(buf, 0, length)
+        val sym = SymbolTable.resolve(env, name)
+        if (sym ne null) sym else new Symbol(name)
+      }
     }
   }
 
@@ -179,8 +247,105 @@ class LispInputStreamReader(env: Environment, in: Reader) extends LispObject wit
       case '#' => dispatch()
       case '|' => readQuotedSymbol()
       case StreamTokenizer.TT_EOF => null
-      case ttype => throw new RuntimeException("unhandled type: " + ttype.asInstanceOf[Char])
+      case ttype => throw new RuntimeException("unhandled type: %s at %s".format(ttype.asInstanceOf[Char], position))
     }
   }
 }
 
+
+object SymbolTable {
+  // the symbol env binds name to, or the keyword name spells; null if there is none
+  def resolve(env: Environment, name: String): Symbol = {
+    if (name.length > 1 && name.charAt(0) == ':') Symbol.keyword(name)
+    else env.find(name).orNull
+  }
+}
+
+/*
+ * The symbols a reader found for the names it read, probed with the characters of a word so that no
+ * String is made for a name read before.  Names env doesn't bind are kept too, and read as a fresh
+ * symbol every time as before.  The table is emptied whenever the version of env's bindings says a
+ * binding was added, since a name may have been bound to another symbol.
+ */
+final class SymbolTable(env: Environment) {
+
+  private val MaxCapacity = 1 << 16
+
+  private var names = new Array[String](256)
+  private var symbols = new Array[Symbol](256)
+  private var size = 0
+  private val bindings = env.version
+  private var version = bindings.get
+
+  private def clear() {
+    java.util.Arrays.fill(names.asInstanceOf[Array[Object]], null)
+    java.util.Arrays.fill(symbols.asInstanceOf[Array[Object]], null)
+    size = 0
+  }
+
+  private def slot(hash: Int): Int = (hash ^ (hash >>> 16)) & (names.length - 1)
+
+  private def matches(name: String, buf: Array[Char], length: Int): Boolean = {
+    if (name.length != length) return false
+    var i = 0
+    while (i < length) {
+      if (name.charAt(i) != buf(i)) return false
+      i += 1
+    }
+    true
+  }
+
+  def find(buf: Array[Char], length: Int): Symbol = {
+    val current = bindings.get
+    if (current != version) {
+      clear()
+      version = current
+    }
+    var hash = 0
+    var i = 0
+    while (i < length) {
+      hash = 31 * hash + buf(i)
+      i += 1
+    }
+    var s = slot(hash)
+    while (true) {
+      val name = names(s)
+      if (name eq null) return add(new String(buf, 0, length))
+      if (matches(name, buf, length)) {
+        val sym = symbols(s)
+        return if (sym ne null) sym else new Symbol(name)
+      }
+      s = (s + 1) & (names.length - 1)
+    }
+    null
+  }
+
+  private def add(name: String): Symbol = {
+    val sym = SymbolTable.resolve(env, name)
+    if ((size + 1) * 2 > names.length) {
+      if (names.length < MaxCapacity) grow() else clear()
+    }
+    put(name, sym)
+    size += 1
+    if (sym ne null) sym else new Symbol(name)
+  }
+
+  private def put(name: String, sym: Symbol) {
+    var s = slot(name.hashCode)
+    while (names(s) ne null) s = (s + 1) & (names.length - 1)
+    names(s) = name
+    symbols(s) = sym
+  }
+
+  private def grow() {
+    val oldNames = names
+    val oldSymbols = symbols
+    names = new Array[String](oldNames.length * 2)
+    symbols = new Array[Symbol](oldNames.length * 2)
+    var i = 0
+    while (i < oldNames.length) {
+      if (oldNames(i) ne null) put(oldNames(i), oldSymbols(i))
+      i += 1
+    }
+  }
+}
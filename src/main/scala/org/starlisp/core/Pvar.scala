@@ -0,0 +1,1261 @@
+package org.starlisp.core
+
+import java.util
+import java.util.concurrent.{ForkJoinTask, ForkJoinPool, RecursiveAction}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLongArray}
+
+/*
+ * A parallel variable: one value per virtual processor, stored in a primitive array.
+ */
+abstract class Pvar extends LispObject {
+  def length: Int
+  def kind: String
+
+  // the value of one processor, for pref
+  def apply(i: Int): LispObject
+
+  override def toString: String = "#<pvar %s %d >".format(kind, length)
+}
+
+final class FixnumPvar(val values: Array[Long]) extends Pvar {
+  def length = values.length
+  def kind = "fixnum"
+  def apply(i: Int): LispObject = LispFixnum.create(values(i))
+}
+
+final class FlonumPvar(val values: Array[Double]) extends Pvar {
+  def length = values.length
+  def kind = "flonum"
+  def apply(i: Int): LispObject = new LispFlonum(values(i))
+}
+
+// one bit per processor, 64 processors to a word
+final class BooleanPvar(val bits: Array[Long], val length: Int) extends Pvar {
+  def this(length: Int) = this(new Array[Long]((length + 63) >>> 6), length)
+  def kind = "boolean"
+  def get(i: Int): Boolean = (bits(i >>> 6) & (1L << i)) != 0
+
+  // the bits of the last word that belong to processors
+  def lastMask: Long = if ((length & 63) == 0) -1L else (1L << length) - 1
+  def apply(i: Int): LispObject = if (get(i)) Symbol.t else null
+}
+
+/*
+ * The shape of a grid of processors.  The first axis varies fastest: the processor at coordinates
+ * (x0 x1 ...) is x0 + d0 * (x1 + d1 * (...)).
+ */
+final class Geometry(val dimensions: Array[Int]) extends LispObject {
+  val strides: Array[Int] = dimensions.scanLeft(1)(_ * _).init
+  def size: Int = dimensions.product
+  def rank: Int = dimensions.length
+
+  override def toString: String = "#<geometry %s >".format(dimensions.mkString("x"))
+}
+
+// a named set of virtual processors, made current with *with-vp-set or set-vp-set
+final class VpSet(val name: String, val geometry: Geometry) extends LispObject {
+  override def toString: String = "#<vp-set %s %s >".format(name, geometry.dimensions.mkString("x"))
+}
+
+/*
+ * Runs an operation over the processors in chunks on a fork/join pool.  Chunks start at multiples of 64
+ * so the words of boolean pvars are never shared between two of them.
+ */
+object Parallel {
+
+  // below this many processors an operation runs on the calling thread
+  val grain = 1 << 14
+
+  lazy val pool = new ForkJoinPool
+
+  def run(n: Int, body: (Int, Int) => Unit) {
+    if (n <= grain) body(0, n) else pool.invoke(new Chunk(body, 0, n))
+  }
+
+  private class Chunk(body: (Int, Int) => Unit, from: Int, until: Int) extends RecursiveAction {
+    def compute() {
+      if (until - from <= grain) {
+        body(from, until)
+      } else {
+        val mid = ((from + until) >>> 1) & ~63
+        ForkJoinTask.invokeAll(new Chunk(body, from, mid), new Chunk(body, mid, until))
+      }
+    }
+  }
+
+  /*
+   * Operations that combine results of chunks, reductions and scans, use a fixed number of chunks: a
+   * few per core, and no fewer processors each than grain.
+   */
+  def chunkSize(n: Int): Int = math.max(grain, ((n / (java.lang.Runtime.getRuntime.availableProcessors * 4)) + 63) & ~63)
+
+  def chunkCount(n: Int): Int = (n + chunkSize(n) - 1) / chunkSize(n)
+
+  // Runs body(chunk, from, until) for every chunk of n processors
+  def chunks(n: Int, body: (Int, Int, Int) => Unit) {
+    val size = chunkSize(n)
+    val count = (n + size - 1) / size
+    if (count == 1) body(0, 0, n) else pool.invoke(new Chunks(body, n, size, 0, count))
+  }
+
+  private class Chunks(body: (Int, Int, Int) => Unit, n: Int, size: Int, from: Int, until: Int) extends RecursiveAction {
+    def compute() {
+      if (until - from == 1) {
+        body(from, from * size, math.min(n, (from + 1) * size))
+      } else {
+        val mid = (from + until) >>> 1
+        ForkJoinTask.invokeAll(new Chunks(body, n, size, from, mid), new Chunks(body, n, size, mid, until))
+      }
+    }
+  }
+}
+
+/*
+ * The *Lisp machine of one Runtime: the number of virtual processors set by *cold-boot, the pvars
+ * defined with *defvar, the context of active processors, and the builtins operating on them.
+ */
+class StarLisp(runtime: Runtime) {
+
+  private var processors = 0
+  private var geometry: Geometry = null
+
+  // *defvar'd pvars and their initial value forms, evaluated again by every *cold-boot
+  private val defvars = new util.LinkedHashMap[String, LispObject]
+
+  /*
+   * The active processors, a bit per processor, or null when all of them are.  *when and *if push the
+   * contexts they compute into a mask kept for their nesting depth, so nesting allocates nothing once a
+   * depth has been reached before; the contexts they replace are kept on a stack of their own.
+   */
+  private var context: Array[Long] = null
+  private val masks = new util.ArrayList[Array[Long]]
+  private val saved = new util.ArrayList[Array[Long]]
+
+  private def error(msg: String) = throw new LispException(Symbol.internalError, msg)
+
+  // Forgets the vp sets, the *defvar'd pvars and the context, as before the first *cold-boot
+  def reset() {
+    processors = 0
+    geometry = null
+    context = null
+    masks.clear()
+    saved.clear()
+    defvars.clear()
+  }
+
+  def vpCount: Int = {
+    if (processors == 0) error("*cold-boot has not been called")
+    processors
+  }
+
+  // Makes the processors of the current context where cond is (or with negate, isn't) true active
+  private def push(cond: BooleanPvar, negate: Boolean) {
+    val depth = saved.size
+    if (masks.size == depth) masks.add(null)
+    // the mask of a depth last used by a vp set of another size
+    if ((masks.get(depth) eq null) || masks.get(depth).length != cond.bits.length) masks.set(depth, new Array[Long](cond.bits.length))
+    val mask = masks.get(depth)
+    val bits = cond.bits
+    val outer = context
+    var i = 0
+    while (i < mask.length) {
+      val c = if (negate) ~bits(i) else bits(i)
+      mask(i) = if (outer eq null) c else c & outer(i)
+      i += 1
+    }
+    mask(mask.length - 1) &= cond.lastMask
+    saved.add(context)
+    context = mask
+  }
+
+  private def pushAll() {
+    saved.add(context)
+    context = null
+  }
+
+  // a *cold-boot within *when has already dropped the contexts
+  private def pop() {
+    context = if (saved.isEmpty) null else saved.remove(saved.size - 1)
+  }
+
+  private def active(i: Int): Boolean = (context eq null) || (context(i >>> 6) & (1L << i)) != 0
+
+  /*
+   * Runs body over the ranges of active processors in parallel.  Words of the context with all bits
+   * set join the range before them, empty words are skipped, and the runs of set bits of the others are
+   * ranges of their own; dense contexts come down to a few long ranges, and sparse ones cost as many
+   * steps as they have words plus active processors.
+   */
+  def each(body: (Int, Int) => Unit) {
+    val n = vpCount
+    if (context eq null) Parallel.run(n, body) else Parallel.run(n, (from, until) => runs(from, until, body))
+  }
+
+  // The ranges of active processors between from and until, which start at a multiple of 64
+  private def runs(from: Int, until: Int, body: (Int, Int) => Unit) {
+    val mask = context
+    if (mask eq null) {
+      body(from, until)
+      return
+    }
+    var start = -1
+    var w = from >>> 6
+    val last = (until + 63) >>> 6
+    while (w < last) {
+      val word = mask(w)
+      val base = w << 6
+      if (word == -1L) {
+        if (start < 0) start = base
+      } else if (word == 0L) {
+        if (start >= 0) {
+          body(start, base)
+          start = -1
+        }
+      } else {
+        var x = word
+        var pos = 0
+        while (pos < 64) {
+          if ((x & 1) != 0) {
+            val ones = java.lang.Long.numberOfTrailingZeros(~x)
+            if (start < 0) start = base + pos
+            pos += ones
+            x >>>= ones
+          } else {
+            if (start >= 0) {
+              body(start, base + pos)
+              start = -1
+            }
+            if (x == 0) {
+              pos = 64
+            } else {
+              val zeros = java.lang.Long.numberOfTrailingZeros(x)
+              pos += zeros
+              x >>>= zeros
+            }
+          }
+        }
+      }
+      w += 1
+    }
+    if (start >= 0) body(start, math.min(until, last << 6))
+  }
+
+  // Evaluates the forms of a body, answering the value of the last one
+  private def progn(body: Cell, env: Environment, eval: Evaluator): LispObject = {
+    var result: LispObject = null
+    var c = body
+    while (c ne null) {
+      result = eval(c.car, env)
+      c = c.rest
+    }
+    result
+  }
+
+  private def condition(obj: LispObject, name: String): BooleanPvar = pvar(obj) match {
+    case b: BooleanPvar => b
+    case other => error("%s wants a boolean pvar: %s".format(name, other))
+  }
+
+  // Pvars for arguments, scalars are broadcast to every processor
+  def pvar(obj: LispObject): Pvar = obj match {
+    case p: Pvar => {
+      if (p.length != vpCount) error("%s doesn't belong to the current *cold-boot".format(p))
+      p
+    }
+    case n: LispFixnum => broadcast(n)
+    case n: LispNumber => broadcast(n)
+    case _ if (obj eq null) || (obj eq Symbol.t) => broadcast(obj)
+    case _ => error("Not a pvar: " + LispObject.toStringOrNil(obj))
+  }
+
+  def broadcast(obj: LispObject): Pvar = {
+    val n = vpCount
+    obj match {
+      case x: LispFixnum => {
+        val values = new Array[Long](n)
+        util.Arrays.fill(values, x.n)
+        new FixnumPvar(values)
+      }
+      case x: LispNumber => {
+        val values = new Array[Double](n)
+        util.Arrays.fill(values, x.toJavaDouble)
+        new FlonumPvar(values)
+      }
+      case _ if obj eq null => new BooleanPvar(n)
+      case _ if obj eq Symbol.t => {
+        val p = new BooleanPvar(n)
+        util.Arrays.fill(p.bits, -1L)
+        p
+      }
+      case _ => error("!! can't broadcast " + obj)
+    }
+  }
+
+  def copy(p: Pvar): Pvar = p match {
+    case p: FixnumPvar => new FixnumPvar(p.values.clone)
+    case p: FlonumPvar => new FlonumPvar(p.values.clone)
+    case p: BooleanPvar => new BooleanPvar(p.bits.clone, p.length)
+  }
+
+  def selfAddress: FixnumPvar = {
+    val values = new Array[Long](vpCount)
+    each((from, until) => {
+      var i = from
+      while (i < until) {
+        values(i) = i
+        i += 1
+      }
+    })
+    new FixnumPvar(values)
+  }
+
+  // Makes a vp set of the given geometry current, with every processor active
+  private def select(geometry: Geometry) {
+    this.geometry = geometry
+    processors = geometry.size
+    context = null
+    saved.clear()
+  }
+
+  def geometry(obj: LispObject): Geometry = obj match {
+    case g: Geometry => g
+    case v: VpSet => v.geometry
+    case n: LispInteger => geometry(new Cell(n, null))
+    case c: Cell => {
+      val dimensions = c.toArray.map(LispNumber.number(_).toJavaLong)
+      if (dimensions.exists(_ <= 0) || dimensions.product > Integer.MAX_VALUE)
+        error("Bad dimensions: " + dimensions.mkString("(", " ", ")"))
+      new Geometry(dimensions.map(_.toInt))
+    }
+    case _ => error("Not a geometry: " + LispObject.toStringOrNil(obj))
+  }
+
+  private def vpSet(obj: LispObject): VpSet = obj match {
+    case v: VpSet => v
+    case _ => error("Not a vp set: " + LispObject.toStringOrNil(obj))
+  }
+
+  private def axis(obj: LispObject): Int = {
+    vpCount
+    val a = LispNumber.number(obj).toJavaInt
+    if (a < 0 || a >= geometry.rank) error("No axis %d in %s".format(a, geometry))
+    a
+  }
+
+  def selfAddressGrid(a: Int): FixnumPvar = {
+    val s = geometry.strides(a)
+    val d = geometry.dimensions(a)
+    val values = new Array[Long](vpCount)
+    each((from, until) => {
+      var i = from
+      while (i < until) {
+        values(i) = (i / s) % d
+        i += 1
+      }
+    })
+    new FixnumPvar(values)
+  }
+
+  // The processor at the given grid coordinates
+  def grid(coordinates: Array[LispObject]): Int = {
+    vpCount
+    if (coordinates.length != geometry.rank) error("grid wants %d coordinates".format(geometry.rank))
+    var address = 0
+    for (a <- 0 until geometry.rank) {
+      val x = LispNumber.number(coordinates(a)).toJavaLong
+      if (x < 0 || x >= geometry.dimensions(a)) error("Coordinate %d is off the grid %s".format(x, geometry))
+      address += x.toInt * geometry.strides(a)
+    }
+    address
+  }
+
+  private def blank(p: Pvar): Pvar = p match {
+    case p: FixnumPvar => new FixnumPvar(new Array[Long](p.length))
+    case p: FlonumPvar => new FlonumPvar(new Array[Double](p.length))
+    case p: BooleanPvar => new BooleanPvar(p.length)
+  }
+
+  // Copies count values of src from from into dst at to, pvars of the same kind
+  private def move(src: Pvar, from: Int, dst: Pvar, to: Int, count: Int) {
+    (src, dst) match {
+      case (s: FixnumPvar, d: FixnumPvar) => System.arraycopy(s.values, from, d.values, to, count)
+      case (s: FlonumPvar, d: FlonumPvar) => System.arraycopy(s.values, from, d.values, to, count)
+      case (s: BooleanPvar, d: BooleanPvar) => {
+        var i = 0
+        while (i < count) {
+          val j = to + i
+          if (s.get(from + i)) d.bits(j >>> 6) |= 1L << j else d.bits(j >>> 6) &= ~(1L << j)
+          i += 1
+        }
+      }
+    }
+  }
+
+  /*
+   * NEWS shifts.  Along an axis of stride s and dimension d every block of s * d processors reads the
+   * block shifted by o rows, wrapping around at its end: the processors of the first d - o rows read
+   * from o * s further on, the others from (d - o) * s back, so a shift is two bulk copies per block
+   * whatever the axis.  Offsets along several axes are shifts along one axis after another.
+   */
+  private def shift(src: Pvar, a: Int, offset: Int): Pvar = {
+    val s = geometry.strides(a)
+    val d = geometry.dimensions(a)
+    val o = ((offset % d) + d) % d
+    if (o == 0) return src
+    val block = s * d
+    val out = blank(src)
+    Parallel.run(src.length, (from, until) => {
+      var p = from
+      while (p < until) {
+        val base = p / block * block
+        val split = base + (d - o) * s
+        val end = math.min(if (p < split) split else base + block, until)
+        move(src, if (p < split) p + o * s else p - (d - o) * s, out, p, end - p)
+        p = end
+      }
+    })
+    out
+  }
+
+  // Replaces the values of out that were shifted in from off the grid along an axis with those of border
+  private def border(out: Pvar, border: Pvar, a: Int, offset: Int) {
+    val s = geometry.strides(a)
+    val d = geometry.dimensions(a)
+    val lo = if (offset > 0) math.max(d - offset, 0) else 0
+    val hi = if (offset > 0) d else math.min(-offset, d)
+    if (offset == 0) return
+    val block = s * d
+    Parallel.run(out.length, (from, until) => {
+      var p = from
+      while (p < until) {
+        val base = p / block * block
+        val start = math.max(p, base + lo * s)
+        val end = math.min(until, base + hi * s)
+        if (start < end) move(border, start, out, start, end - start)
+        p = base + block
+      }
+    })
+  }
+
+  private def offsets(name: String, args: Array[LispObject], from: Int): Array[Int] = {
+    vpCount
+    if (args.length - from > geometry.rank) error("%s: %s has %d axes".format(name, geometry, geometry.rank))
+    Array.tabulate(args.length - from)(i => LispNumber.number(args(from + i)).toJavaLong.max(Int.MinValue).min(Int.MaxValue).toInt)
+  }
+
+  // The values of the processors at the given offsets along each axis, wrapping around the grid
+  def news(p: Pvar, offsets: Array[Int]): Pvar = {
+    var out = p
+    for (a <- 0 until offsets.length) out = shift(out, a, offsets(a))
+    if (out eq p) copy(p) else out
+  }
+
+  // As news, but processors whose neighbor is off the grid take their own value of border
+  def newsBorder(p: Pvar, b: Pvar, offsets: Array[Int]): Pvar = {
+    val (src, fill) = (p, b) match {
+      case (_: BooleanPvar, _: BooleanPvar) | (_: FixnumPvar, _: FixnumPvar) | (_: FlonumPvar, _: FlonumPvar) => (p, b)
+      case (_: BooleanPvar, _) | (_, _: BooleanPvar) => error("news-border!!: can't border a %s pvar with a %s pvar".format(p.kind, b.kind))
+      case _ => (new FlonumPvar(doubles(p)), new FlonumPvar(doubles(b)))
+    }
+    val out = news(src, offsets)
+    for (a <- 0 until offsets.length) border(out, fill, a, offsets(a))
+    out
+  }
+
+  // Sends the values of the active processors to the processors at the given offsets, wrapping around
+  def sendNews(src: Pvar, dst: Pvar, offsets: Array[Int]) {
+    val back = offsets.map(-_)
+    val values = news(src, back)
+    // the receivers are the active processors shifted by the offsets
+    val receivers = if (context eq null) null else news(new BooleanPvar(context, processors), back).asInstanceOf[BooleanPvar]
+    val outer = context
+    context = if (receivers eq null) null else receivers.bits
+    try store(dst, values) finally context = outer
+  }
+
+  private def addresses(name: String, obj: LispObject): Array[Long] = pvar(obj) match {
+    case p: FixnumPvar => p.values
+    case p => error("%s wants a fixnum pvar of addresses: %s".format(name, p))
+  }
+
+  private def outOfRange(name: String, n: Int) = error("%s: addresses must be below %d".format(name, n))
+
+  // The values of p at the processors addressed by the active processors
+  def gather(name: String, p: Pvar, addr: Array[Long]): Pvar = {
+    val n = p.length
+    val bad = new AtomicBoolean
+    def at(i: Int): Int = {
+      val a = addr(i)
+      if (a < 0 || a >= n) {
+        bad.set(true)
+        0
+      } else {
+        a.toInt
+      }
+    }
+    val out = p match {
+      case p: FixnumPvar => {
+        val values = new Array[Long](n)
+        each((from, until) => {
+          var i = from
+          while (i < until) {
+            values(i) = p.values(at(i))
+            i += 1
+          }
+        })
+        new FixnumPvar(values)
+      }
+      case p: FlonumPvar => {
+        val values = new Array[Double](n)
+        each((from, until) => {
+          var i = from
+          while (i < until) {
+            values(i) = p.values(at(i))
+            i += 1
+          }
+        })
+        new FlonumPvar(values)
+      }
+      case p: BooleanPvar => {
+        val out = new BooleanPvar(n)
+        bitwise(out, (i: Int) => p.get(at(i)))
+        out
+      }
+    }
+    if (bad.get) outOfRange(name, n)
+    out
+  }
+
+  private val CacheBits = 10
+
+  def combiner(obj: LispObject): Int = LispObject.toStringOrNil(obj) match {
+    case ":overwrite" | ":default" | ":no-collisions" => Overwrite
+    case ":add" => Add
+    case ":max" | ":or" => Max
+    case ":min" | ":and" => Min
+    case ":logior" => Logior
+    case other => error("*pset: unknown combiner " + other)
+  }
+
+  /*
+   * *pset: the values the active processors send to a processor are combined and replace its value,
+   * processors sent nothing keep theirs.  Values are combined in an AtomicLongArray, flonums as their
+   * bits, and every chunk of senders first combines them in a small direct-mapped cache of its own, so
+   * the many values sent to a few processors, as in histograms, mostly combine without contending.
+   */
+  def pset(name: String, op: Int, values: Pvar, dst: Pvar, addr: Array[Long]) {
+    val n = dst.length
+    val flonum = dst.isInstanceOf[FlonumPvar]
+    // the values sent: fixnums, flonums as their bits, booleans as 0 or 1
+    val sent: Int => Long = (dst, values) match {
+      case (_: FixnumPvar, v: FixnumPvar) => i => v.values(i)
+      case (_: FlonumPvar, _: FixnumPvar) | (_: FlonumPvar, _: FlonumPvar) => {
+        val d = doubles(values)
+        i => java.lang.Double.doubleToRawLongBits(d(i))
+      }
+      case (_: BooleanPvar, v: BooleanPvar) => i => if (v.get(i)) 1L else 0L
+      case _ => error("%s: can't send a %s pvar to a %s pvar".format(name, values.kind, dst.kind))
+    }
+    if ((op == Add && dst.isInstanceOf[BooleanPvar]) || (op == Logior && flonum))
+      error("%s: can't combine %s pvars that way".format(name, dst.kind))
+    val overflow = new AtomicBoolean
+    def merge(a: Long, b: Long): Long = {
+      if (op == Overwrite) {
+        b
+      } else if (flonum) {
+        java.lang.Double.doubleToRawLongBits(combine(op, java.lang.Double.longBitsToDouble(a), java.lang.Double.longBitsToDouble(b)))
+      } else {
+        val r = combine(op, a, b)
+        if (op == Add && ((a ^ r) & (b ^ r)) < 0) overflow.set(true)
+        r
+      }
+    }
+    val shared = new AtomicLongArray(n)
+    val start = if (op == Overwrite) 0L else if (flonum) java.lang.Double.doubleToRawLongBits(identityDouble(op)) else identity(op)
+    if (start != 0) Parallel.run(n, (from, until) => {
+      var i = from
+      while (i < until) {
+        shared.lazySet(i, start)
+        i += 1
+      }
+    })
+    val received = new Array[Boolean](n)
+    val bad = new AtomicBoolean
+    Parallel.chunks(n, (c, from, until) => {
+      val keys = new Array[Int](1 << CacheBits)
+      val cached = new Array[Long](1 << CacheBits)
+      util.Arrays.fill(keys, -1)
+      def flush(a: Int, v: Long) {
+        var old = shared.get(a)
+        while (!shared.compareAndSet(a, old, merge(old, v))) old = shared.get(a)
+        received(a) = true
+      }
+      runs(from, until, (from, until) => {
+        var i = from
+        while (i < until) {
+          val l = addr(i)
+          if (l < 0 || l >= n) {
+            bad.set(true)
+          } else {
+            val a = l.toInt
+            val slot = (a * 0x9E3779B9) >>> (32 - CacheBits)
+            if (keys(slot) == a) {
+              cached(slot) = merge(cached(slot), sent(i))
+            } else {
+              if (keys(slot) >= 0) flush(keys(slot), cached(slot))
+              keys(slot) = a
+              cached(slot) = sent(i)
+            }
+          }
+          i += 1
+        }
+      })
+      var slot = 0
+      while (slot < keys.length) {
+        if (keys(slot) >= 0) flush(keys(slot), cached(slot))
+        slot += 1
+      }
+    })
+    if (bad.get) outOfRange(name, n)
+    if (overflow.get) error("Fixnum overflow in " + name)
+    val store: Int => Unit = dst match {
+      case d: FixnumPvar => i => d.values(i) = shared.get(i)
+      case d: FlonumPvar => i => d.values(i) = java.lang.Double.longBitsToDouble(shared.get(i))
+      case d: BooleanPvar => i => if (shared.get(i) != 0) d.bits(i >>> 6) |= 1L << i else d.bits(i >>> 6) &= ~(1L << i)
+    }
+    Parallel.run(n, (from, until) => {
+      var i = from
+      while (i < until) {
+        if (received(i)) store(i)
+        i += 1
+      }
+    })
+  }
+
+  private def doubles(p: Pvar): Array[Double] = p match {
+    case p: FlonumPvar => p.values
+    case p: FixnumPvar => {
+      val values = new Array[Double](p.length)
+      Parallel.run(values.length, (from, until) => {
+        var i = from
+        while (i < until) {
+          values(i) = p.values(i)
+          i += 1
+        }
+      })
+      values
+    }
+    case _ => error("Not a numeric pvar: " + p)
+  }
+
+  private val Add = 0
+  private val Sub = 1
+  private val Mul = 2
+  private val Max = 3
+  private val Min = 4
+  private val Logior = 5
+  private val Overwrite = 6
+
+  /*
+   * Elementwise arithmetic.  Fixnum results that overflow are an error rather than a bignum, a pvar
+   * has no room for one.  The result is written over a when reuse is set.
+   */
+  private def arithmetic(name: String, op: Int, a: Pvar, b: Pvar, reuse: Boolean): Pvar = (a, b) match {
+    case (a: FixnumPvar, b: FixnumPvar) => {
+      val x = a.values
+      val y = b.values
+      val out = if (reuse) x else new Array[Long](x.length)
+      val overflow = new AtomicBoolean
+      each((from, until) => {
+        var i = from
+        op match {
+          case Add => while (i < until) {
+            val r = x(i) + y(i)
+            if (((x(i) ^ r) & (y(i) ^ r)) < 0) overflow.set(true)
+            out(i) = r
+            i += 1
+          }
+          case Sub => while (i < until) {
+            val r = x(i) - y(i)
+            if (((x(i) ^ y(i)) & (x(i) ^ r)) < 0) overflow.set(true)
+            out(i) = r
+            i += 1
+          }
+          case Mul => while (i < until) {
+            val r = x(i) * y(i)
+            if (((math.abs(x(i)) | math.abs(y(i))) >>> 31) != 0 &&
+                ((y(i) != 0 && r / y(i) != x(i)) || (x(i) == Long.MinValue && y(i) == -1))) overflow.set(true)
+            out(i) = r
+            i += 1
+          }
+        }
+      })
+      if (overflow.get) error("Fixnum overflow in " + name)
+      new FixnumPvar(out)
+    }
+    case _ => {
+      val reusable = reuse && a.isInstanceOf[FlonumPvar]
+      val x = doubles(a)
+      val y = doubles(b)
+      val out = if (reusable) x else new Array[Double](x.length)
+      each((from, until) => {
+        var i = from
+        op match {
+          case Add => while (i < until) { out(i) = x(i) + y(i); i += 1 }
+          case Sub => while (i < until) { out(i) = x(i) - y(i); i += 1 }
+          case Mul => while (i < until) { out(i) = x(i) * y(i); i += 1 }
+        }
+      })
+      new FlonumPvar(out)
+    }
+  }
+
+  // folds the arguments from the left, intermediate results are updated in place
+  private def fold(name: String, op: Int, args: Array[LispObject]): Pvar = {
+    var acc = pvar(args(0))
+    var i = 1
+    while (i < args.length) {
+      acc = arithmetic(name, op, acc, pvar(args(i)), i > 1)
+      i += 1
+    }
+    acc
+  }
+
+  def numEq(a: Pvar, b: Pvar): BooleanPvar = {
+    val out = new BooleanPvar(a.length)
+    (a, b) match {
+      case (a: FixnumPvar, b: FixnumPvar) => {
+        val x = a.values
+        val y = b.values
+        bitwise(out, (i: Int) => x(i) == y(i))
+      }
+      case _ => {
+        val x = doubles(a)
+        val y = doubles(b)
+        bitwise(out, (i: Int) => x(i) == y(i))
+      }
+    }
+    out
+  }
+
+  // Sets the bits of the active processors of out, which starts out false, where test holds
+  def bitwise(out: BooleanPvar, test: Int => Boolean) {
+    val bits = out.bits
+    each((from, until) => {
+      var i = from
+      while (i < until) {
+        val end = math.min((i & ~63) + 64, until)
+        var word = 0L
+        var j = i
+        while (j < end) {
+          if (test(j)) word |= 1L << j
+          j += 1
+        }
+        bits(i >>> 6) |= word
+        i = end
+      }
+    })
+  }
+
+  // Elementwise selection: a where the condition holds, otherwise b
+  def select(c: BooleanPvar, a: Pvar, b: Pvar): Pvar = {
+    (a, b) match {
+      case (a: BooleanPvar, b: BooleanPvar) => {
+        val out = new BooleanPvar(a.length)
+        bitwise(out, (i: Int) => if (c.get(i)) a.get(i) else b.get(i))
+        out
+      }
+      case (a: FixnumPvar, b: FixnumPvar) => {
+        val out = new Array[Long](a.length)
+        each((from, until) => {
+          var i = from
+          while (i < until) {
+            out(i) = if (c.get(i)) a.values(i) else b.values(i)
+            i += 1
+          }
+        })
+        new FixnumPvar(out)
+      }
+      case _ => {
+        val x = doubles(a)
+        val y = doubles(b)
+        val out = new Array[Double](x.length)
+        each((from, until) => {
+          var i = from
+          while (i < until) {
+            out(i) = if (c.get(i)) x(i) else y(i)
+            i += 1
+          }
+        })
+        new FlonumPvar(out)
+      }
+    }
+  }
+
+  // Copies the values of src into dst in the active processors, converting fixnums to flonums
+  def store(dst: Pvar, src: Pvar) {
+    (dst, src) match {
+      case (d: FixnumPvar, s: FixnumPvar) => each((from, until) => System.arraycopy(s.values, from, d.values, from, until - from))
+      case (d: FlonumPvar, s: Pvar) => {
+        val values = doubles(s)
+        each((from, until) => System.arraycopy(values, from, d.values, from, until - from))
+      }
+      case (d: BooleanPvar, s: BooleanPvar) => each((from, until) => {
+        var i = from
+        while (i < until) {
+          val end = math.min((i & ~63) + 64, until)
+          // the bits from i to end of their word
+          val mask = (if (end - (i & ~63) == 64) -1L else (1L << end) - 1) & (-1L << i)
+          val w = i >>> 6
+          d.bits(w) = (d.bits(w) & ~mask) | (s.bits(w) & mask)
+          i = end
+        }
+      })
+      case _ => error("Can't store a %s pvar into a %s pvar".format(src.kind, dst.kind))
+    }
+  }
+
+  private def combine(op: Int, a: Long, b: Long): Long = op match {
+    case Add => a + b
+    case Max => if (a > b) a else b
+    case Min => if (a < b) a else b
+    case Logior => a | b
+  }
+
+  private def combine(op: Int, a: Double, b: Double): Double = op match {
+    case Add => a + b
+    case Max => math.max(a, b)
+    case Min => math.min(a, b)
+  }
+
+  private def identity(op: Int): Long = op match {
+    case Max => Long.MinValue
+    case Min => Long.MaxValue
+    case _ => 0L
+  }
+
+  private def identityDouble(op: Int): Double = op match {
+    case Max => Double.NegativeInfinity
+    case Min => Double.PositiveInfinity
+    case _ => 0.0
+  }
+
+  /*
+   * Reductions: every chunk reduces its processors, then the results of the chunks are combined.  A
+   * fixnum sum that overflows anywhere is added up again as a bignum.
+   */
+  def reduce(name: String, op: Int, p: Pvar): LispObject = p match {
+    case p: FixnumPvar => {
+      val x = p.values
+      val partials = new Array[Long](Parallel.chunkCount(x.length))
+      util.Arrays.fill(partials, identity(op))
+      val overflow = new AtomicBoolean
+      Parallel.chunks(x.length, (c, from, until) => runs(from, until, (from, until) => {
+        var acc = partials(c)
+        var i = from
+        while (i < until) {
+          val r = combine(op, acc, x(i))
+          if (op == Add && ((acc ^ r) & (x(i) ^ r)) < 0) overflow.set(true)
+          acc = r
+          i += 1
+        }
+        partials(c) = acc
+      }))
+      var acc = identity(op)
+      for (v <- partials) {
+        val r = combine(op, acc, v)
+        if (op == Add && ((acc ^ r) & (v ^ r)) < 0) overflow.set(true)
+        acc = r
+      }
+      if (overflow.get) {
+        var sum = BigInt(0)
+        for (i <- 0 until x.length) if (active(i)) sum += x(i)
+        LispFixnum.normalize(sum)
+      } else {
+        LispFixnum.create(acc)
+      }
+    }
+    case p: FlonumPvar if op != Logior => {
+      val x = p.values
+      val partials = new Array[Double](Parallel.chunkCount(x.length))
+      util.Arrays.fill(partials, identityDouble(op))
+      Parallel.chunks(x.length, (c, from, until) => runs(from, until, (from, until) => {
+        var acc = partials(c)
+        var i = from
+        while (i < until) {
+          acc = combine(op, acc, x(i))
+          i += 1
+        }
+        partials(c) = acc
+      }))
+      new LispFlonum(partials.foldLeft(identityDouble(op))(combine(op, _, _)))
+    }
+    case _ => error("%s wants a numeric pvar: %s".format(name, p))
+  }
+
+  // *and and *or look at 64 processors at a time, few enough words not to split them up
+  def every(p: Pvar, value: Boolean): Boolean = p match {
+    case p: BooleanPvar => {
+      val bits = p.bits
+      val last = bits.length - 1
+      var i = 0
+      while (i <= last) {
+        val mask = (if (i == last) p.lastMask else -1L) & (if (context eq null) -1L else context(i))
+        val word = if (value) bits(i) else ~bits(i)
+        if ((word & mask) != mask) return false
+        i += 1
+      }
+      true
+    }
+    case _ => error("Not a boolean pvar: " + p)
+  }
+
+  /*
+   * Prefix scans in three passes: every chunk reduces its processors, a carry into each chunk is
+   * computed from the results in order, and every chunk scans its processors from its carry.  A
+   * processor whose segment pvar is true starts a new segment, inactive processors are left out.  Sums
+   * wrap in the first two passes and are checked in the last one, which produces the exact prefixes.
+   */
+  private def scan(name: String, x: Array[Long], op: Int, segments: BooleanPvar, inclusive: Boolean): Array[Long] = {
+    val n = x.length
+    val out = new Array[Long](n)
+    val e = identity(op)
+    val count = Parallel.chunkCount(n)
+    val totals = new Array[Long](count)
+    val starts = new Array[Boolean](count)
+    Parallel.chunks(n, (c, from, until) => {
+      var acc = e
+      var i = from
+      while (i < until) {
+        if (active(i)) {
+          if ((segments ne null) && segments.get(i)) {
+            acc = e
+            starts(c) = true
+          }
+          acc = combine(op, acc, x(i))
+        }
+        i += 1
+      }
+      totals(c) = acc
+    })
+    val carries = new Array[Long](count)
+    carries(0) = e
+    for (c <- 1 until count) carries(c) = if (starts(c - 1)) totals(c - 1) else combine(op, carries(c - 1), totals(c - 1))
+    val overflow = new AtomicBoolean
+    Parallel.chunks(n, (c, from, until) => {
+      var acc = carries(c)
+      var i = from
+      while (i < until) {
+        if (active(i)) {
+          if ((segments ne null) && segments.get(i)) acc = e
+          if (!inclusive) out(i) = acc
+          val r = combine(op, acc, x(i))
+          if (op == Add && ((acc ^ r) & (x(i) ^ r)) < 0) overflow.set(true)
+          acc = r
+          if (inclusive) out(i) = acc
+        }
+        i += 1
+      }
+    })
+    if (overflow.get) error("Fixnum overflow in " + name)
+    out
+  }
+
+  private def scan(x: Array[Double], op: Int, segments: BooleanPvar, inclusive: Boolean): Array[Double] = {
+    val n = x.length
+    val out = new Array[Double](n)
+    val e = identityDouble(op)
+    val count = Parallel.chunkCount(n)
+    val totals = new Array[Double](count)
+    val starts = new Array[Boolean](count)
+    Parallel.chunks(n, (c, from, until) => {
+      var acc = e
+      var i = from
+      while (i < until) {
+        if (active(i)) {
+          if ((segments ne null) && segments.get(i)) {
+            acc = e
+            starts(c) = true
+          }
+          acc = combine(op, acc, x(i))
+        }
+        i += 1
+      }
+      totals(c) = acc
+    })
+    val carries = new Array[Double](count)
+    carries(0) = e
+    for (c <- 1 until count) carries(c) = if (starts(c - 1)) totals(c - 1) else combine(op, carries(c - 1), totals(c - 1))
+    Parallel.chunks(n, (c, from, until) => {
+      var acc = carries(c)
+      var i = from
+      while (i < until) {
+        if (active(i)) {
+          if ((segments ne null) && segments.get(i)) acc = e
+          if (!inclusive) out(i) = acc
+          acc = combine(op, acc, x(i))
+          if (inclusive) out(i) = acc
+        }
+        i += 1
+      }
+    })
+    out
+  }
+
+  // (scan!! pvar 'fn [:segment-pvar segments] [:include-self nil]), fn is +!! max!! min!! logior!! and!! or!!
+  def scan(args: Array[LispObject]): Pvar = {
+    val p = pvar(args(0))
+    val fn = args(1) match {
+      case proc: Procedure => proc.name
+      case obj => LispObject.toStringOrNil(obj)
+    }
+    var segments: BooleanPvar = null
+    var inclusive = true
+    var i = 2
+    while (i < args.length) {
+      if (i + 1 == args.length) error("scan!!: missing value for " + args(i))
+      LispObject.toStringOrNil(args(i)) match {
+        case ":segment-pvar" => segments = pvar(args(i + 1)) match {
+          case b: BooleanPvar => b
+          case other => error("scan!!: the segment pvar must be boolean: " + other)
+        }
+        case ":include-self" => inclusive = args(i + 1) ne null
+        case key => error("scan!!: unknown keyword " + key)
+      }
+      i += 2
+    }
+    val op = fn match {
+      case "+!!" => Add
+      // booleans are scanned as fixnums 0 and 1, where or is the maximum and and the minimum
+      case "max!!" | "or!!" => Max
+      case "min!!" | "and!!" => Min
+      case "logior!!" => Logior
+      case _ => error("scan!!: can't scan with " + fn)
+    }
+    (p, fn) match {
+      case (p: BooleanPvar, "and!!" | "or!!") => {
+        val x = new Array[Long](p.length)
+        Parallel.run(x.length, (from, until) => {
+          var j = from
+          while (j < until) {
+            if (p.get(j)) x(j) = 1
+            j += 1
+          }
+        })
+        val scanned = scan("scan!!", x, op, segments, inclusive)
+        val out = new BooleanPvar(p.length)
+        bitwise(out, (j: Int) => scanned(j) != 0)
+        out
+      }
+      case (p: FixnumPvar, "+!!" | "max!!" | "min!!" | "logior!!") => new FixnumPvar(scan("scan!!", p.values, op, segments, inclusive))
+      case (p: FlonumPvar, "+!!" | "max!!" | "min!!") => new FlonumPvar(scan(p.values, op, segments, inclusive))
+      case _ => error("scan!!: can't scan a %s pvar with %s".format(p.kind, fn))
+    }
+  }
+
+  private def define(name: String, init: LispObject) {
+    val value = copy(pvar(runtime.eval(init)))
+    if (!runtime.globalEnv.assign(name, value)) runtime.globalEnv.intern(new Symbol(name, value))
+  }
+
+  private def variadic(name: String, op: Int) = new Subr(name, 1) {
+    def callN(env: Environment, args: Array[LispObject]) = {
+      if (args.length == 0) tooFew
+      // a single argument is negated by -!!, and taken as it is by the others
+      if (args.length == 1 && op == Sub) arithmetic(name, op, broadcast(LispFixnum.create(0)), pvar(args(0)), false)
+      else if (args.length == 1) pvar(args(0))
+      else fold(name, op, args)
+    }
+  }
+
+  def procedures: Seq[Procedure] = Seq(
+    /*
+     * (*cold-boot [n | :initial-dimensions '(n ...)]) sets the number of virtual processors, 1024 by
+     * default, and allocates the *defvar'd pvars again.
+     */
+    new LispFn("*cold-boot") {
+      def apply(o: Array[LispObject]) = {
+        select(
+          if (o.length == 0) new Geometry(Array(1024))
+          else if (o.length == 2 && o(0).isInstanceOf[Symbol] && o(0).as[Symbol].name == ":initial-dimensions") geometry(o(1))
+          else geometry(o(0)))
+        masks.clear()
+        val it = defvars.entrySet.iterator
+        while (it.hasNext) {
+          val e = it.next
+          define(e.getKey, e.getValue)
+        }
+        LispFixnum.create(processors)
+      }
+    },
+    new Procedure("*defvar") {
+      def apply(env: Environment, head: Cell, eval: Evaluator) = {
+        val list = head.rest
+        if ((list eq null) || !list.car.isInstanceOf[Symbol]) error("*defvar wants a name")
+        val name = list.car.as[Symbol]
+        val init = if (list.rest eq null) LispFixnum.create(0) else list.cadr
+        defvars.put(name.name, init)
+        define(name.name, init)
+        name
+      }
+    },
+    new LispFn("allocate!!", 1, 1) {
+      def apply(o: Array[LispObject]) = copy(pvar(o(0)))
+    },
+    new LispFn1[LispObject]("!!") {
+      def apply(a: LispObject) = broadcast(a)
+    },
+    new LispFn0("self-address!!") {
+      def apply() = selfAddress
+    },
+    // (create-geometry [:dimensions] '(n ...))
+    new LispFn("create-geometry", 1, 2) {
+      def apply(o: Array[LispObject]) = geometry(o(o.length - 1))
+    },
+    // (def-vp-set name '(n ...) | geometry) defines name as a vp set of that shape
+    new Procedure("def-vp-set") {
+      def apply(env: Environment, head: Cell, eval: Evaluator) = {
+        val list = head.rest
+        if ((list eq null) || !list.car.isInstanceOf[Symbol] || (list.rest eq null)) error("def-vp-set wants a name and dimensions")
+        val name = list.car.as[Symbol]
+        val vpSet = new VpSet(name.name, geometry(eval(list.cadr, env)))
+        if (!runtime.globalEnv.assign(name.name, vpSet)) runtime.globalEnv.intern(new Symbol(name.name, vpSet))
+        name
+      }
+    },
+    new LispFn1[LispObject]("set-vp-set") {
+      def apply(v: LispObject) = {
+        select(vpSet(v).geometry)
+        v
+      }
+    },
+    // (*with-vp-set vp-set . body) evaluates body with the processors of vp-set, all of them active
+    new Procedure("*with-vp-set") {
+      def apply(env: Environment, head: Cell, eval: Evaluator) = {
+        if (head.rest eq null) error("*with-vp-set wants a vp set")
+        val vpSet = StarLisp.this.vpSet(eval(head.cadr, env))
+        val (outerGeometry, outerContext, outerSaved) = (geometry, context, new util.ArrayList(saved))
+        select(vpSet.geometry)
+        try progn(head.cddr, env, eval) finally {
+          geometry = outerGeometry
+          processors = if (outerGeometry eq null) 0 else outerGeometry.size
+          context = outerContext
+          saved.clear()
+          saved.addAll(outerSaved)
+        }
+      }
+    },
+    new LispFn1[LispObject]("dimension-size") {
+      def apply(a: LispObject) = LispFixnum.create(geometry.dimensions(axis(a)))
+    },
+    new LispFn1[LispObject]("self-address-grid!!") {
+      def apply(a: LispObject) = selfAddressGrid(axis(a))
+    },
+    new LispFn("grid") {
+      def apply(o: Array[LispObject]) = LispFixnum.create(grid(o))
+    },
+    // (news!! pvar dx dy ...) is the value of pvar at the processor dx, dy ... away on the grid
+    new LispFn("news!!", 1) {
+      def apply(o: Array[LispObject]) = news(pvar(o(0)), offsets(name, o, 1))
+    },
+    // (news-border!! pvar border dx dy ...) takes the value of border where the neighbor is off the grid
+    new LispFn("news-border!!", 2) {
+      def apply(o: Array[LispObject]) = newsBorder(pvar(o(0)), pvar(o(1)), offsets(name, o, 2))
+    },
+    // (*news src dst dx dy ...) stores src into dst of the processors dx, dy ... away
+    new LispFn("*news", 2) {
+      def apply(o: Array[LispObject]) = {
+        sendNews(pvar(o(0)), pvar(o(1)), offsets(name, o, 2))
+        o(1)
+      }
+    },
+    // (pref!! pvar addresses) is the value of pvar at the processor each processor addresses
+    new LispFn2[LispObject, LispObject]("pref!!") {
+      def apply(p: LispObject, a: LispObject) = gather(name, pvar(p), addresses(name, a))
+    },
+    // (*pset combiner values dst addresses) sends values to the processors addressed, combining collisions
+    new LispFn("*pset", 4, 4) {
+      def apply(o: Array[LispObject]) = {
+        pset(name, combiner(o(0)), pvar(o(1)), pvar(o(2)), addresses(name, o(3)))
+        o(2)
+      }
+    },
+    new LispFn2[Pvar, LispInteger]("pref") {
+      def apply(p: Pvar, i: LispInteger) = p(i.toJavaInt)
+    },
+    new LispFn2[LispObject, LispObject]("*set") {
+      def apply(dst: LispObject, src: LispObject) = {
+        store(pvar(dst), pvar(src))
+        dst
+      }
+    },
+    variadic("+!!", Add),
+    variadic("-!!", Sub),
+    variadic("*!!", Mul),
+    new LispFnP[LispObject]("=!!") {
+      def apply(a: LispObject, b: LispObject) = numEq(pvar(a), pvar(b))
+    },
+    // (*when cond . body) evaluates body with the processors where cond is true active
+    new Procedure("*when") {
+      def apply(env: Environment, head: Cell, eval: Evaluator) = {
+        if (head.rest eq null) error("*when wants a condition")
+        push(condition(eval(head.cadr, env), name), false)
+        try progn(head.cddr, env, eval) finally pop()
+      }
+    },
+    // (*all . body) evaluates body with every processor active
+    new Procedure("*all") {
+      def apply(env: Environment, head: Cell, eval: Evaluator) = {
+        pushAll()
+        try progn(head.rest, env, eval) finally pop()
+      }
+    },
+    // (*if cond then [else]) evaluates then where cond is true and else where it isn't, for their effects
+    new Procedure("*if") {
+      def apply(env: Environment, head: Cell, eval: Evaluator) = {
+        if (head.rest eq null) error("*if wants a condition")
+        val cond = condition(eval(head.cadr, env), name)
+        push(cond, false)
+        try eval(Analyzer.nth(head, 2), env) finally pop()
+        push(cond, true)
+        try eval(Analyzer.nth(head, 3), env) finally pop()
+        null
+      }
+    },
+    // (if!! cond then else) is the pvar of the values of then where cond is true, and of else elsewhere
+    new Procedure("if!!") {
+      def apply(env: Environment, head: Cell, eval: Evaluator) = {
+        if (head.rest eq null) error("if!! wants a condition")
+        val cond = condition(eval(head.cadr, env), name)
+        push(cond, false)
+        val a = try pvar(eval(Analyzer.nth(head, 2), env)) finally pop()
+        push(cond, true)
+        val b = try pvar(eval(Analyzer.nth(head, 3), env)) finally pop()
+        select(cond, a, b)
+      }
+    },
+    new LispFn1[LispObject]("*sum") {
+      def apply(p: LispObject) = reduce(name, Add, pvar(p))
+    },
+    new LispFn1[LispObject]("*max") {
+      def apply(p: LispObject) = reduce(name, Max, pvar(p))
+    },
+    new LispFn1[LispObject]("*min") {
+      def apply(p: LispObject) = reduce(name, Min, pvar(p))
+    },
+    new LispFn1[LispObject]("*logior") {
+      def apply(p: LispObject) = pvar(p) match {
+        case f: FixnumPvar => reduce(name, Logior, f)
+        case other => error("*logior wants a fixnum pvar: " + other)
+      }
+    },
+    new LispFn1[LispObject]("*and") {
+      def apply(p: LispObject) = if (every(pvar(p), true)) Symbol.t else null
+    },
+    new LispFn1[LispObject]("*or") {
+      def apply(p: LispObject) = if (every(pvar(p), false)) null else Symbol.t
+    },
+    new LispFn("scan!!", 2) {
+      def apply(o: Array[LispObject]) = scan(o)
+    })
+}
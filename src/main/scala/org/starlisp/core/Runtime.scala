@@ -4,6 +4,8 @@ import java.io._
 import scala.Predef._
 import scala.Some
 import java.util.Date
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 
 // TODO: in order to make runtime construction cheaper, we should move non-runtime specific interns
 //       to a System type object initializer so runtime construction
@@ -27,9 +29,15 @@ object Runtime {
     }
     runtime
   }
+
+  // A runtime with the bootstrap definitions, cloned from ones evaluated once per JVM
+  def createFromTemplate: Runtime = RuntimeTemplate.bootstrapped.newRuntime
+
+  // A runtime with the definitions of a boot image written by save-image
+  def createFromImage(path: String): Runtime = Image.load(new Runtime, new File(path))
 }
 
-class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
+class Runtime(val systemEnv: Environment = RootEnvironment.chain, template: RuntimeTemplate = null) extends Evaluator {
 
   import Symbol._
 
@@ -38,8 +46,32 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
 
   var stopped = false
 
-  val runtimeEnv = systemEnv.chain
-  val globalEnv = runtimeEnv.chain
+  // macro calls evaluated with a cached expansion and ones that had to be expanded, see CallNode
+  val expansionHits = new AtomicLong
+  val expansionMisses = new AtomicLong
+
+  val runtimeEnv = new LexicalEnvironment(systemEnv)
+  private val templateEnv = if (template eq null) null else new CopyOnWriteEnvironment(template, this)
+  val globalEnv = new LexicalEnvironment(if (template eq null) runtimeEnv else templateEnv)
+
+  // the version of the bindings of all the environments above, see GlobalRef
+  private[core] val bindingVersion = globalEnv.version
+
+  val starLisp = new StarLisp(this)
+
+  // the futures evaluating in this runtime, see LispFuture
+  private[core] val futures = java.util.Collections.newSetFromMap(new ConcurrentHashMap[LispFuture, java.lang.Boolean])
+
+  def cancelFutures() {
+    val it = futures.iterator
+    while (it.hasNext) it.next.cancel()
+  }
+
+  // Ends an interrupted evaluation, and the futures it started unless it is one of them being cancelled
+  private[core] def interrupted(): Nothing = {
+    if (!LispFuture.evaluating) cancelFutures()
+    throw new LispException(internalError, "Interrupted.")
+  }
 
   private def error(msg: String): LispObject = {
     throw new LispException(internalError, msg)
@@ -48,16 +80,20 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
 
   private def cons(car: LispObject, cdr: LispObject = null): Cell = new Cell(car, cdr)
 
-  private def evlis(list: Cell, env: Environment): Cell = {
-    if (list == null) return null
-    var last = new Cell(eval(list.car, env))
-    val result = last
-    var c = list.rest
-    while (c != null) {
-      last = last.Cdr(new Cell(eval(c.car, env)))
-      c = c.rest
+  private def compileLambda(name: Symbol, fn: LispObject): LispObject = {
+    fn match {
+      case compiled: CompiledProcedure => compiled
+      case lambda: Cell if lambda.car eq Symbol.lambda => compiler.compile(name, lambda)
+      case _ => error("%s is not a lambda.".format(LispObject.toStringOrNil(fn)))
     }
-    result
+  }
+
+  private def makeArray(elementType: String, length: Int): LispArray = elementType match {
+    case "t" => new LispVector(length)
+    case "fixnum" => new LispFixnumArray(new Array[Long](length))
+    case "flonum" => new LispFlonumArray(new Array[Double](length))
+    case "byte" => new LispByteArray(new Array[Byte](length))
+    case _ => throw new LispException(internalError, "make-array: unknown element type " + elementType)
   }
 
   def inputStreamFromString(string: String): LispInputStream = {
@@ -66,84 +102,131 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
 
   def eval(obj: LispObject, env: Environment = globalEnv): LispObject = {
     obj match {
-      case symbol: Symbol => {
-        if (symbol.value eq null) {
-          val sym = env.find(symbol)
-          if (sym eq None)
-            error("The variable %s is unbound.".format(symbol.name))
-          else
-            sym.get.value
-        } else {
-          symbol.value
+      case symbol: Symbol => lookup(symbol, env)
+      case list: Cell => Analyzer.form(list).eval(this, env)
+      case _ => obj
+    }
+  }
+
+  def apply(obj: LispObject, env: Environment): LispObject = eval(obj, env)
+
+  private[core] def lookup(symbol: Symbol, env: Environment): LispObject = {
+    if (symbol.value eq null) {
+      val value = env.lookup(symbol.name)
+      if (value eq Environment.Unbound)
+        error("The variable %s is unbound.".format(symbol.name))
+      else
+        value
+    } else {
+      symbol.value
+    }
+  }
+
+  private[core] def apply(fn: LambdaNode, args: Array[Node], env: Environment): LispObject = {
+    val values = new Array[LispObject](args.length)
+    var i = 0
+    while (i < args.length) {
+      values(i) = args(i).eval(this, env)
+      i += 1
+    }
+    invoke(fn, values, env)
+  }
+
+  private[core] def invoke(fn: LambdaNode, args: Array[LispObject], env: Environment): LispObject = {
+    fn.register(bindingVersion)
+    run(fn, fn.frame(args, env), env)
+  }
+
+  // Evaluates the body of fn in frame (chained from base), continuing with the lambdas its tail calls return
+  private def run(lambda: LambdaNode, env: Environment, base: Environment): LispObject = {
+    var fn = lambda
+    var frame = env
+    while (true) {
+      // lets a caller bound the time spent evaluating, see EvalServer
+      if (Thread.interrupted()) interrupted()
+      val body = fn.body
+      if (body.length == 0) return null
+      var i = 0
+      while (i < body.length - 1) {
+        body(i).eval(this, frame)
+        i += 1
+      }
+      body(i).eval(this, frame) match {
+        case call: TailCall => {
+          // lambdas addressing an enclosing scope by depth need the chain as it is
+          val outer = if (call.fn.scope.parent eq null) visible(frame, base, call.fn.scope) else frame
+          fn = call.fn
+          fn.register(bindingVersion)
+          frame = fn.frame(call.args, outer)
         }
+        case result => return result
       }
-      case list: Cell => {
-        eval(list.car, env) match {
-          case first: Cell => {
-            val fn = first.car
-            if (fn eq lambda) {
-              evalLambda(list.rest, first.rest, env.chain)
-            } else if (fn eq `macro`) {
-              evalmacro(list, first.rest, env)
-            } else {
-              error("%s is not a function.".format(list.car.toString))
+    }
+    null
+  }
+
+  /*
+   * The frames between a tail call and the base of its run loop belong to invocations that have
+   * finished, but under dynamic scope the callee still sees their bindings.  Collapse them into a
+   * single environment holding only the bindings the callee doesn't rebind, so a loop doesn't grow
+   * the chain (and the lookups walking it) on every iteration.
+   */
+  private def visible(frame: Environment, base: Environment, callee: Scope): Environment = {
+    var names: collection.mutable.ArrayBuffer[Symbol] = null
+    var values: collection.mutable.ArrayBuffer[LispObject] = null
+    var e = frame
+    while (e ne base) {
+      e match {
+        case f: Frame => {
+          var i = f.names.length - 1
+          while (i >= 0) {
+            val name = f.names(i)
+            if ((name ne null) && !callee.binds(name) && ((names eq null) || !names.exists(_.name == name.name))) {
+              if (names eq null) {
+                names = new collection.mutable.ArrayBuffer[Symbol]
+                values = new collection.mutable.ArrayBuffer[LispObject]
+              }
+              names += name
+              values += f.values(i)
             }
+            i -= 1
           }
-          case proc: Procedure => proc(env, list, eval)
-          case unknown => {
-            error("EVAL: %s is not a function name; try using a symbol instead. EXPR: %s".format(
-                  String.valueOf(list.car),
-                  LispObject.toStringOrNil(obj)))
-          }
+          e = f.parent
         }
+        case _ => return frame
       }
-      case _ => obj
     }
+    if (names eq null) base else new Frame(names.toArray, values.toArray, base)
   }
 
-  private def evalmacro(list: Cell, second: Cell, env: Environment): LispObject = {
-    eval(eval(cons(cons(lambda, second), cons(cons(quote, cons(list)))), env), env)
+  private[core] def tailCall(fn: LambdaNode, args: Array[Node], env: Environment): TailCall = {
+    val values = new Array[LispObject](args.length)
+    var i = 0
+    while (i < args.length) {
+      values(i) = args(i).eval(this, env)
+      i += 1
+    }
+    new TailCall(fn, values)
   }
 
-  private def pairlis(cell: Cell, argsList: Cell, env: Environment) {
-    var vars = cell
-    var args = argsList
-    var done = false
-    while (!done) {
-      if (vars.cdr == null) {
-        if (args.cdr != null) error("Too many args: " + argsList)
-        env.bind(vars.Car[Symbol], args.car)
-        done = true
-      } else if (!(vars.cdr.isInstanceOf[Cell])) {
-        env.bind(vars.Car[Symbol], args.car)
-        env.bind(vars.Cdr[Symbol], args.cdr)
-        done = true
-      } else {
-        env.bind(vars.Car[Symbol], args.car)
-        args = args.rest
-        if (argsList == null) error("Too few args: " + argsList)
-        vars = vars.rest
-      }
-    }
+  // Runs the expander of a macro on the (unevaluated) form of its call
+  private[core] def expand(expander: LambdaNode, form: Cell, env: Environment): LispObject = {
+    invoke(expander, Array[LispObject](form), env)
   }
 
-  private def evalLambda(args: Cell, second: Cell, env: Environment): LispObject = {
-    var lambdaBody = second.rest
-    if (lambdaBody == null) return null // TODO: fix?
-    val lambdaVar = second.car
-    (Option(lambdaVar), Option(evlis(args, env))) match {
-      case (Some(symbol: Symbol), Some(argsList: Cell)) => env.bind(symbol, argsList)
-      case (Some(head: Cell), Some(argsList: Cell)) => pairlis(head, argsList, env)
-      case (Some(cell: Cell), None) => error("Too few args (zero in fact): " + args)
-      case (_, _) => ;
-    }
-    while (lambdaBody.cdr != null) {
-      eval(lambdaBody.car, env)
-      lambdaBody = lambdaBody.rest
-    }
-    eval(lambdaBody.car, env)
+  // Applies fn to arguments that are already evaluated, as compiled code does
+  def call(fn: LispObject, args: Array[LispObject], env: Environment): LispObject = {
+    fn match {
+      case compiled: CompiledProcedure => compiled.invoke(args, env)
+      case lambda: Cell if lambda.car eq Symbol.lambda => invoke(Analyzer.lambda(lambda), args, env)
+      case subr: Subr => subr.callN(env, args)
+      case proc: Procedure => error("%s evaluates its own arguments and can't be called with values.".format(proc))
+      case _ => error("%s is not a function.".format(LispObject.toStringOrNil(fn)))
+    }
   }
 
+  lazy val compiler = new Compiler(this)
+
   // Initialize the Runtime-specific methods
   private def intern(proc: Procedure) {
     runtimeEnv.intern(proc.name).value = proc
@@ -153,6 +236,9 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
   def intern(sym: Symbol): Symbol = runtimeEnv.intern(sym)
 
   val standardInput = runtimeEnv.intern("*standard-input*", new LispInputStreamReader(runtimeEnv, System.in))
+  // streams of this runtime, starting out as the JVM's own
+  val standardOutput = runtimeEnv.intern("*standard-output*", Symbol.standardOutput.value)
+  val standardError = runtimeEnv.intern("*standard-error*", Symbol.standardError.value)
 
   def read(stream: LispInputStream): LispObject = {
     Option(stream).getOrElse(standardInput.value).as[LispInputStream].read
@@ -220,7 +306,7 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
     }
   })
   intern(new Procedure("set") {
-    def apply(env: Environment, head: Cell, eval: (LispObject, Environment) => LispObject) = {
+    def apply(env: Environment, head: Cell, eval: Evaluator) = {
       val list = head.rest
       if (list eq null) error("Too few args when calling procedure: " + toString)
       val symRef = eval(list.car, env)
@@ -235,21 +321,19 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
       if (list.rest eq null) error("Too few args when calling procedure: " + toString)
       val b = eval(list.rest.car, env)
 
-      env.find(sym) match {
-        case Some(foundSymbol) => {
-          // TODO: should we also set the value of sym ?
-          foundSymbol.value = b
-        }
-        case None => {
-          sym.value = b
-          globalEnv.intern(sym) // CMUCL style auto-promote to special
-        }
+      // TODO: should we also set the value of sym ?
+      if (!env.assign(sym.name, b)) {
+        // symbols every runtime shares are shadowed by one of this runtime's own
+        val binding = if (Symbol.isShared(sym)) new Symbol(sym.name) else sym
+        binding.value = b
+        // futures may define globals concurrently
+        globalEnv.synchronized { globalEnv.intern(binding) } // CMUCL style auto-promote to special
       }
       b
     }
   })
   intern(new Procedure("open", 2) {
-    def apply(env: Environment, head: Cell, eval: (LispObject, Environment) => LispObject) = {
+    def apply(env: Environment, head: Cell, eval: Evaluator) = {
       val list = head.rest
       try {
         if (list eq null) error("Too few args when calling procedure: " + toString)
@@ -267,8 +351,84 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
       }
     }
   })
+  // (compile-file "foo.ljsp") loads foo.ljsp, saving its forms to foo.fasl for load to use instead
+  intern(new Subr("compile-file", 1, 1) {
+    def callN(env: Environment, args: Args) = {
+      if (args.length < 1) tooFew
+      new LispString(Fasl.compile(Runtime.this, args(0).as[LispString].toJavaString, env))
+    }
+  })
+  // (%load-fasl "foo.ljsp") evaluates foo.fasl if it's up to date, returning nil if there is none that is
+  intern(new Subr("%load-fasl", 1, 1) {
+    def callN(env: Environment, args: Args) = {
+      if (args.length < 1) tooFew
+      if (Fasl.load(Runtime.this, args(0).as[LispString].toJavaString, env)) t else nil
+    }
+  })
+  intern(new LispFn1[LispString]("save-image") {
+    def apply(a: LispString) = {
+      Image.save(Runtime.this, new File(a.toJavaString))
+      a
+    }
+  })
+  // (open-binary "file" 'in) maps the file, (open-binary "file" 'out) writes it
+  intern(new Procedure("open-binary", 2) {
+    def apply(env: Environment, head: Cell, eval: Evaluator) = {
+      val list = head.rest
+      if ((list eq null) || (list.rest eq null)) error("Too few args when calling procedure: " + toString)
+      val a = eval(list.car, env).as[LispString].toJavaString
+      val b = eval(list.rest.car, env)
+      try {
+        if (b eq in) {
+          val stream = new FileInputStream(a)
+          try {
+            val fc = stream.getChannel
+            new LispBinaryInputStream(Runtime.this, fc.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, fc.size()), env)
+          } finally {
+            stream.close()
+          }
+        }
+        else if (b eq out) new LispBinaryOutputStream(Runtime.this, new FileOutputStream(a))
+        else throw new LispException(internalError, "You confused me, you want a stream out, or in?")
+      } catch {
+        case e: IOException => throw new LispException(internalError, e)
+      }
+    }
+  })
+  // (write-binary obj stream) writes obj to a binary stream, (write-binary obj) returns its bytes
+  intern(new Subr("write-binary", 1, 2) {
+    def callN(env: Environment, args: Args) = {
+      if (args.length < 1) tooFew
+      try {
+        if (args.length > 1) {
+          if (!args(1).isInstanceOf[LispBinaryOutputStream]) error("%s is not a binary output stream.".format(LispObject.toStringOrNil(args(1))))
+          args(1).as[LispBinaryOutputStream].write(args(0))
+          args(0)
+        } else {
+          val bytes = new ByteArrayOutputStream
+          val writer = new BinaryWriter(Runtime.this, bytes)
+          writer.write(args(0))
+          writer.flush()
+          new LispByteArray(bytes.toByteArray)
+        }
+      } catch {
+        case e: IOException => throw new LispException(internalError, e)
+      }
+    }
+  })
+  // (read-binary source) reads the next object of a binary stream, or the object a byte array holds
+  intern(new Subr("read-binary", 1, 1) {
+    def callN(env: Environment, args: Args) = {
+      if (args.length < 1) tooFew
+      args(0) match {
+        case stream: LispBinaryInputStream => stream.read
+        case bytes: LispByteArray => new LispBinaryInputStream(Runtime.this, java.nio.ByteBuffer.wrap(bytes.ar), env).read
+        case obj => error("%s is not a binary input stream or byte array.".format(LispObject.toStringOrNil(obj)))
+      }
+    }
+  })
   intern(new Procedure("make-string-input-stream") {
-    def apply(env: Environment, head: Cell, eval: (LispObject, Environment) => LispObject) = {
+    def apply(env: Environment, head: Cell, eval: Evaluator) = {
       val list = head.rest
       if (list eq null) error("Too few args when calling procedure: " + toString)
       val a = eval(list.car, env).as[LispString].toJavaString
@@ -288,6 +448,60 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
       })
     }
   })
+  // (future form...) evaluates the forms on the pool of futures, await waits for their value
+  intern(new Procedure("future") {
+    def apply(env: Environment, head: Cell, eval: Evaluator) = {
+      val body = head.rest
+      new LispFuture(Runtime.this, () => {
+        var result: LispObject = nil
+        var list = body
+        while (list ne null) {
+          result = eval(list.car, env)
+          list = list.rest
+        }
+        result
+      })
+    }
+  })
+  // (await future [timeout-ms [timeout-value]])
+  intern(new LispFn("await", 1, 3) {
+    def apply(o: Args) = {
+      if (!o(0).isInstanceOf[LispFuture]) error("%s is not a future.".format(LispObject.toStringOrNil(o(0))))
+      val future = o(0).as[LispFuture]
+      if (o.length == 1) future.await()
+      else future.await(o(1).as[LispInteger].toJavaLong, if (o.length > 2) o(2) else nil)
+    }
+  })
+  // (pcall fn arg...) evaluates fn and the args in parallel, then calls fn with the args
+  intern(new Procedure("pcall", 1) {
+    def apply(env: Environment, head: Cell, eval: Evaluator) = {
+      if (head.rest eq null) error("Too few args when calling procedure: " + toString)
+      val forms = head.rest.toArray
+      val values = LispFuture.all(Runtime.this, forms.map(form => () => eval(form, env)))
+      call(values(0), values.drop(1), env)
+    }
+  })
+  // (pmap fn list...) is mapcar with the calls of fn spread over the cores
+  intern(new Subr("pmap", 2) {
+    def callN(env: Environment, args: Args) = {
+      if (args.length < 2) tooFew
+      val fn = args(0)
+      val lists = args.drop(1).map(list => if (list eq nil) new Array[LispObject](0) else list.as[Cell].toArray)
+      val n = lists.map(_.length).min
+      val results = new Array[LispObject](n)
+      // a few runs of calls per core, so that uneven calls still keep all cores busy
+      val runs = math.min(n, java.lang.Runtime.getRuntime.availableProcessors * 4)
+      LispFuture.all(Runtime.this, Array.tabulate(runs)(run => () => {
+        var i = run * n / runs
+        while (i < (run + 1) * n / runs) {
+          results(i) = call(fn, lists.map(_(i)), env)
+          i += 1
+        }
+        nil
+      }))
+      Cell.list(results)
+    }
+  })
   intern(new LispFnP[LispObject]("%try") {
     def apply(a: LispObject, b: LispObject) = {
       try {
@@ -333,12 +547,14 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
 
   intern(new LispFn("gensym") {def apply(o: Args) = gensym})
   intern(new Procedure("eval") {
-    def apply(env: Environment, head: Cell, eval: (LispObject, Environment) => LispObject) = {
-      eval(head, env)
+    def apply(env: Environment, head: Cell, eval: Evaluator) = {
+      val list = head.rest
+      if (list eq null) error("Too few args when calling procedure: " + toString)
+      eval(eval(list.car, env), env)
     }
   })
   intern(new Procedure("env-depth") {
-    def apply(env: Environment, head: Cell, eval: (LispObject, Environment) => LispObject) = {
+    def apply(env: Environment, head: Cell, eval: Evaluator) = {
       LispFixnum.create(env.depth(0))
     }
   })
@@ -347,7 +563,7 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
   intern("Class", new JavaObject(classOf[java.lang.Class[_]]))
 
   intern(new Procedure("aeq"){
-    def apply(env: Environment, list: Cell, eval: ((LispObject, Environment) => LispObject)): LispObject = {
+    def apply(env: Environment, list: Cell, eval: Evaluator): LispObject = {
       val evalA = eval(list.cadr, env)
       val evalB = eval(list.caddr, env)
       val areEqual = if (evalA.getClass == evalB.getClass) {
@@ -395,17 +611,17 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
   intern(new LispFn1[LispObject]("atom?") {
     def apply(a: LispObject) = if (a.isInstanceOf[Cell]) nil else t
   })
-  intern(new LispFnP[LispNumber]("+") {
-    def apply(a: LispNumber, b: LispNumber) = { a.add(b) }
+  intern(new NumberFold("+", LispFixnum.create(0)) {
+    def op(a: LispObject, b: LispObject) = LispNumber.add(a, b)
   })
-  intern(new LispFnP[LispNumber]("-") {
-    def apply(a: LispNumber, b: LispNumber) = { a.sub(b) }
+  intern(new NumberReduction("-", LispFixnum.create(0)) {
+    def op(a: LispObject, b: LispObject) = LispNumber.sub(a, b)
   })
-  intern(new LispFnP[LispNumber]("*") {
-    def apply(a: LispNumber, b: LispNumber) = { a.mul(b) }
+  intern(new NumberFold("*", LispFixnum.create(1)) {
+    def op(a: LispObject, b: LispObject) = LispNumber.mul(a, b)
   })
-  intern(new LispFnP[LispNumber]("/") {
-    def apply(a: LispNumber, b: LispNumber) = { a.div(b) }
+  intern(new NumberReduction("/", LispFixnum.create(1)) {
+    def op(a: LispObject, b: LispObject) = LispNumber.div(a, b)
   })
   intern(new LispFnP[LispInteger]("mod") {
     def apply(a: LispInteger, b: LispInteger) = { a.mod(b) }
@@ -422,8 +638,20 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
   intern(new LispFnP[LispObject]("eql?") {
     def apply(a: LispObject, b: LispObject) = eql(a, b)
   })
-  intern(new LispFnP[LispNumber]("=") {
-    def apply(a: LispNumber, b: LispNumber) = if (a == b) t else nil
+  intern(new NumberComparison("=") {
+    def test(a: LispObject, b: LispObject) = LispNumber.numEq(a, b)
+  })
+  intern(new NumberComparison("<") {
+    def test(a: LispObject, b: LispObject) = LispNumber.compare(a, b) < 0
+  })
+  intern(new NumberComparison(">") {
+    def test(a: LispObject, b: LispObject) = LispNumber.compare(a, b) > 0
+  })
+  intern(new NumberComparison("<=") {
+    def test(a: LispObject, b: LispObject) = LispNumber.compare(a, b) <= 0
+  })
+  intern(new NumberComparison(">=") {
+    def test(a: LispObject, b: LispObject) = LispNumber.compare(a, b) >= 0
   })
   intern(new LispFnP[LispChar]("char=") {
     def apply(a: LispChar, b: LispChar) = if (a.ch == b.ch) t else nil
@@ -437,6 +665,12 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
   intern(new LispFn0("time") {
     def apply() = new LispString(new Date().toString)
   })
+  intern(new LispFn0("macro-expansion-stats") {
+    def apply() = {
+      cons(new Symbol("hits"), cons(LispFixnum.create(expansionHits.get),
+        cons(new Symbol("misses"), cons(LispFixnum.create(expansionMisses.get)))))
+    }
+  })
   intern(new LispFn0("get-time") {
     def apply() = new LispFixnum(System.currentTimeMillis)
   })
@@ -468,9 +702,52 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
   })
   intern(new LispFn("make-array", 1) {
     def apply(o: Args) = {
-      if (o(0).isInstanceOf[Cell]) new LispArray(o(0).as[Cell])
-      else if (o(0).isInstanceOf[LispInteger]) new LispArray((o(0).as[LispInteger]).toJavaInt)
-      else throw new LispException(internalError, "make-array wants an integer or a list")
+      var elementType = "t"
+      var initialElement: LispObject = nil
+      var i = 1
+      while (i < o.length) {
+        if (i + 1 == o.length) error("make-array: missing value for " + o(i))
+        o(i) match {
+          case key: Symbol if key.name == ":element-type" => elementType = String.valueOf(o(i + 1))
+          case key: Symbol if key.name == ":initial-element" => initialElement = o(i + 1)
+          case key => error("make-array: unknown keyword " + key)
+        }
+        i += 2
+      }
+      if (o(0).isInstanceOf[Cell]) {
+        val list = o(0).as[Cell]
+        val array = makeArray(elementType, list.length)
+        var c = list
+        var j = 0
+        while (c ne nil) {
+          array.aset(j, c.car)
+          c = c.rest
+          j += 1
+        }
+        array
+      } else if (o(0).isInstanceOf[LispInteger]) {
+        val array = makeArray(elementType, (o(0).as[LispInteger]).toJavaInt)
+        if (initialElement ne nil) array.fill(initialElement, 0, array.length)
+        array
+      } else {
+        throw new LispException(internalError, "make-array wants an integer or a list")
+      }
+    }
+  })
+  intern(new LispFn("fill", 2, 4) {
+    def apply(o: Args) = {
+      val array = o(0).as[LispArray]
+      array.fill(o(1), if (o.length > 2) (o(2).as[LispInteger]).toJavaInt else 0,
+                       if (o.length > 3) (o(3).as[LispInteger]).toJavaInt else array.length)
+      array
+    }
+  })
+  intern(new LispFn("array-copy", 5) {
+    def apply(o: Args) = {
+      val dst = o(2).as[LispArray]
+      o(0).as[LispArray].copy((o(1).as[LispInteger]).toJavaInt, dst, (o(3).as[LispInteger]).toJavaInt,
+                              (o(4).as[LispInteger]).toJavaInt)
+      dst
     }
   })
   intern(new LispFn("make-string", 2) {
@@ -495,8 +772,76 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
   intern(new LispFn1[LispObject]("sxhash") {
     def apply(a: LispObject) = new LispFixnum(if (a eq nil) 0 else a.hashCode)
   })
-  intern(new LispFn("running-compiled?") {
-    def apply(o: Args) = nil
+  /*
+   * (make-hash-table [:test 'eq|'eql|'equal] [:concurrent t]), eql is the default test.
+   */
+  intern(new LispFn("make-hash-table") {
+    def apply(o: Args) = {
+      var test = "eql"
+      var concurrent = false
+      var i = 0
+      while (i < o.length) {
+        if (i + 1 == o.length) error("make-hash-table: missing value for " + o(i))
+        o(i) match {
+          case key: Symbol if key.name == ":test" => test = LispHashTable.test(o(i + 1) match {
+            case proc: Procedure => proc.name
+            case obj => String.valueOf(obj)
+          })
+          case key: Symbol if key.name == ":concurrent" => concurrent = o(i + 1) ne nil
+          case key => error("make-hash-table: unknown keyword " + key)
+        }
+        i += 2
+      }
+      new LispHashTable(test, concurrent)
+    }
+  })
+  intern(new LispFn("gethash", 2, 3) {
+    def apply(o: Args) = o(1).as[LispHashTable].get(o(0), if (o.length > 2) o(2) else nil)
+  })
+  intern(new LispFn3[LispObject, LispObject, LispHashTable]("puthash") {
+    def apply(key: LispObject, value: LispObject, table: LispHashTable) = table.put(key, value)
+  })
+  intern(new LispFn2[LispObject, LispHashTable]("remhash") {
+    def apply(key: LispObject, table: LispHashTable) = if (table.remove(key)) t else nil
+  })
+  intern(new LispFn1[LispHashTable]("clrhash") {
+    def apply(table: LispHashTable) = { table.clear(); table }
+  })
+  intern(new LispFn1[LispHashTable]("hash-table-count") {
+    def apply(table: LispHashTable) = LispFixnum.create(table.size)
+  })
+  intern(new Subr("maphash", 2, 2) {
+    def callN(env: Environment, args: Args) = {
+      if (args.length < 2) tooFew
+      val fn = args(0)
+      args(1).as[LispHashTable].foreach((key, value) => call(fn, Array(key, value), env))
+      nil
+    }
+  })
+  /*
+   * (compile 'name) replaces the lambda bound to name with its compiled procedure, (compile 'name lambda)
+   * binds name to the compiled lambda and (compile nil lambda) just returns it.
+   */
+  intern(new Procedure("compile") {
+    def apply(env: Environment, head: Cell, eval: Evaluator) = {
+      val list = head.rest
+      if (list eq null) error("Too few args when calling procedure: " + toString)
+      val name = eval(list.car, env)
+      val definition = if (list.rest eq null) nil else eval(list.rest.car, env)
+      name match {
+        case sym: Symbol => {
+          if (Symbol.isShared(sym)) error("%s is not a lambda.".format(sym))
+          val binding = if (sym.value ne null) sym else globalEnv.find(sym.name).getOrElse(globalEnv.intern(sym))
+          binding.value = compileLambda(binding, if (definition eq nil) binding.value else definition)
+          sym
+        }
+        case lambda: Cell => compileLambda(null, lambda)
+        case _ => compileLambda(null, definition)
+      }
+    }
+  })
+  intern(new Subr("running-compiled?") {
+    def callN(env: Environment, args: Args) = nil
   })
   intern(new LispFn1[LispChar]("char->integer") {
     def apply(a: LispChar) = new LispFixnum(a.ch.asInstanceOf[Int])
@@ -516,6 +861,8 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
   private val subr: Symbol = intern("subr")
   private val array: Symbol = intern("array")
   private val string: Symbol = intern("string")
+  private val hashTable: Symbol = intern("hash-table")
+  private val pvar: Symbol = intern("pvar")
   private val javaObject: Symbol = intern("java-object")
   private val javaMethod: Symbol = intern("java-method")
   //  private val exception: Symbol = intern("exception")
@@ -535,9 +882,11 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
         else if (a eq cons) b.isInstanceOf[Cell]
         else if (a eq list) ((b eq nil) || b.isInstanceOf[Cell])
         else if (a eq procedure) b.isInstanceOf[Procedure]
-        else if (a eq subr) b.isInstanceOf[LispFn]
+        else if (a eq subr) b.isInstanceOf[Subr]
         else if (a eq array) b.isInstanceOf[LispArray]
         else if (a eq string) b.isInstanceOf[LispString]
+        else if (a eq hashTable) b.isInstanceOf[LispHashTable]
+        else if (a eq pvar) b.isInstanceOf[Pvar]
         else if (a eq javaObject) b.isInstanceOf[JavaObject]
         else if (a eq javaMethod) b.isInstanceOf[JavaMethod]
         else if (a eq charmander) b.isInstanceOf[LispChar]
@@ -546,4 +895,50 @@ class Runtime(val systemEnv: Environment = RootEnvironment.chain) {
       if (knownType) t else nil
     }
   })
+
+  starLisp.procedures.foreach(intern)
+
+  // the bindings made above, and their values
+  private val builtins = runtimeEnv.ownSymbols.values.toArray
+  private val builtinValues = builtins.map(_.value)
+
+  // the builtins evaluated code has assigned since
+  private[core] def changedBuiltins: Map[String, Symbol] =
+    builtins.indices.filter(i => builtins(i).value ne builtinValues(i)).map(i => (builtins(i).name, builtins(i))).toMap
+
+  // the global definitions: bindings evaluated code made and builtins it assigned, a template's included
+  private[core] def definitions: Map[String, Symbol] = {
+    val inherited =
+      if (template eq null) Map.empty[String, Symbol]
+      else template.globals.getSymbols.keys.map(name => (name, templateEnv.find(name).get)).toMap
+    changedBuiltins ++ inherited ++ globalEnv.ownSymbols
+  }
+
+  // procedures by the names they are bound to when a runtime starts out, lambda and the like included
+  private lazy val builtinProcedures: Map[String, LispObject] =
+    (builtins.indices.map(i => (builtins(i).name, builtinValues(i))) ++
+      RootEnvironment.getSymbols.mapValues(_.value)).filter(_._2.isInstanceOf[Procedure]).toMap
+
+  private[core] def builtin(name: String): LispObject = builtinProcedures.getOrElse(name, nil)
+
+  private[core] def builtinName(proc: Procedure): String = if (builtin(proc.name) eq proc) proc.name else null
+
+  /*
+   * Forgets everything evaluated since the runtime was made: global definitions, assignments to builtins,
+   * futures still running and the *Lisp machine.  A runtime cloned from a template sees the template's
+   * definitions again.
+   */
+  def reset() {
+    globalEnv.clear()
+    var i = 0
+    while (i < builtins.length) {
+      builtins(i).value = builtinValues(i)
+      i += 1
+    }
+    // after the builtins, as template definitions may have assigned some of them
+    if (templateEnv ne null) templateEnv.reset()
+    cancelFutures()
+    starLisp.reset()
+    stopped = false
+  }
 }
@@ -0,0 +1,271 @@
+package org.starlisp.core
+
+import java.util
+import java.util.concurrent.{ConcurrentHashMap, LinkedBlockingQueue, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
+
+object RuntimeTemplate {
+  lazy val bootstrapped = new RuntimeTemplate(Runtime.createAndBootstrap)
+}
+
+/*
+ * The global definitions of a runtime, frozen so that any number of runtimes can be cloned from them
+ * without evaluating them again.  The runtime itself is never used after that.
+ */
+final class RuntimeTemplate(runtime: Runtime) {
+
+  // the global definitions, with builtins the definitions assigned (bootstrap.ljsp defines list so)
+  private[core] val globals = new FinalizedEnvironment(runtime.definitions)
+
+  private[core] def isGlobal(sym: Symbol): Boolean = globals.find(sym.name) exists (_ eq sym)
+
+  // symbols bound by the Runtime constructor of the template, builtin procedures among them
+  private val builtins = runtime.runtimeEnv.ownSymbols
+
+  private[core] def isBuiltin(sym: Symbol): Boolean = builtins.get(sym.name) exists (_ eq sym)
+
+  private[core] def isBuiltin(proc: Procedure): Boolean = builtins.get(proc.name) exists (_.value eq proc)
+
+  def newRuntime: Runtime = new Runtime(template = this)
+}
+
+/*
+ * The global bindings of a runtime cloned from a template.  A binding of the template is copied into
+ * the clone the first time the clone looks its name up, with a copy of everything its value reaches:
+ * the symbols of other globals become bindings of the clone in turn, the template's builtins the
+ * clone's own, and procedures the template compiled are compiled again from a copy of their lambda, as
+ * their code refers to the template's symbols and runtime.  So the template is never changed, a clone
+ * only pays for the definitions it uses, and list structure shared between definitions stays shared
+ * within the clone.  Futures may look names up on several threads at once, copying is done under the
+ * environment's lock.
+ */
+final class CopyOnWriteEnvironment(template: RuntimeTemplate, runtime: Runtime) extends Environment {
+
+  // the clone's bindings of template names, those still being copied without their value
+  private val bindings = new util.HashMap[String, Symbol]
+  // the bindings holding a copy of the template's value, by name
+  private val copied = new ConcurrentHashMap[String, Symbol]
+  // names found again while their value is being copied
+  private val copying = new util.HashSet[String]
+  private val copies = new util.IdentityHashMap[AnyRef, LispObject]
+  // the copies of template definitions that are code, which reset keeps
+  private val code = new util.HashMap[String, LispObject]
+
+  private def outer = runtime.runtimeEnv
+
+  def version = outer.version
+
+  // builtins the template assigned keep their symbol, which the clone's builtins may compare against
+  private def binding(name: String): Symbol = {
+    var sym = bindings.get(name)
+    if (sym eq null) {
+      sym = outer.find(name).filter(!Symbol.isShared(_)).getOrElse(new Symbol(name))
+      bindings.put(name, sym)
+    }
+    sym
+  }
+
+  private def symbol(sym: Symbol): Symbol = {
+    if (Symbol.isShared(sym)) sym
+    // filled now, since code may take the value of a quoted name without looking it up
+    else if (template.isGlobal(sym)) find(sym.name).get
+    else if (template.isBuiltin(sym)) outer.find(sym.name).getOrElse(sym)
+    else {
+      val done = copies.get(sym)
+      if (done ne null) return done.asInstanceOf[Symbol]
+      val copy = new Symbol(sym.name)
+      copies.put(sym, copy)
+      copy.value = this.copy(sym.value)
+      copy
+    }
+  }
+
+  private def copy(obj: LispObject): LispObject = obj match {
+    case null => null
+    case sym: Symbol => symbol(sym)
+    case cell: Cell => list(cell)
+    case compiled: CompiledProcedure if compiled.lambda ne null => {
+      val done = copies.get(compiled)
+      if (done ne null) return done
+      val self = if (compiled.self eq null) null else symbol(compiled.self)
+      remember(compiled, runtime.compiler.compile(self, list(compiled.lambda)))
+    }
+    case proc: Procedure => if (template.isBuiltin(proc)) outer.lookup(proc.name) else proc
+    case _ => {
+      val done = copies.get(obj)
+      if (done ne null) return done
+      obj match {
+        case s: LispString => remember(obj, new LispString(s.toJavaString))
+        case a: LispFixnumArray => remember(obj, new LispFixnumArray(a.ar.clone))
+        case a: LispFlonumArray => remember(obj, new LispFlonumArray(a.ar.clone))
+        case a: LispByteArray => remember(obj, new LispByteArray(a.ar.clone))
+        case a: LispVector => {
+          val v = remember(obj, new LispVector(a.length))
+          for (i <- 0 until a.length) v.aset(i, copy(a.aref(i)))
+          v
+        }
+        case h: LispHashTable => {
+          val table = remember(obj, new LispHashTable(h.test, h.concurrent))
+          h.foreach((k, v) => table.put(copy(k), copy(v)))
+          table
+        }
+        // numbers and characters are immutable, streams and Java objects are shared
+        case _ => obj
+      }
+    }
+  }
+
+  private def remember[T <: LispObject](original: LispObject, copy: T): T = {
+    copies.put(original, copy)
+    copy
+  }
+
+  // copies the cells along the cdrs in a loop, only cars recurse
+  private def list(cell: Cell): Cell = {
+    val done = copies.get(cell)
+    if (done ne null) return done.asInstanceOf[Cell]
+    val head = new Cell
+    copies.put(cell, head)
+    var from = cell
+    var to = head
+    while (true) {
+      to.car = copy(from.car)
+      from.cdr match {
+        case next: Cell => {
+          val shared = copies.get(next)
+          if (shared ne null) {
+            to.cdr = shared
+            return head
+          }
+          val c = new Cell
+          copies.put(next, c)
+          to.cdr = c
+          to = c
+          from = next
+        }
+        case other => {
+          to.cdr = copy(other)
+          return head
+        }
+      }
+    }
+    head
+  }
+
+  def find(str: String): Option[Symbol] = {
+    val done = copied.get(str)
+    if (done ne null) return Some(done)
+    template.globals.find(str) match {
+      case Some(sym) => synchronized {
+        val b = binding(str)
+        if (copied.containsKey(str) || !copying.add(str)) return Some(b)
+        try {
+          b.value = copy(sym.value)
+          if (isCode(sym.value)) code.put(str, b.value)
+        } finally {
+          copying.remove(str)
+        }
+        copied.put(str, b)
+        Some(b)
+      }
+      case None => outer.find(str)
+    }
+  }
+  def find(symbol: Symbol): Option[Symbol] = find(symbol.name)
+
+  private def isCode(obj: LispObject): Boolean = obj match {
+    case cell: Cell => (cell.car eq Symbol.lambda) || (cell.car eq Symbol.`macro`)
+    case _ => obj.isInstanceOf[Procedure]
+  }
+
+  /*
+   * Gives the template's definitions the clone copied their template values again.  Copies of lambdas,
+   * macros and procedures are kept, with the analysis and compiled code made for them, since code is
+   * rebound rather than changed; other values may have been changed in place and are copied afresh.
+   */
+  def reset(): Unit = synchronized {
+    copies.clear()
+    // copying may copy more definitions
+    for (b <- copied.values.toArray(new Array[Symbol](copied.size))) {
+      val kept = code.get(b.name)
+      b.value = if (kept ne null) kept else copy(template.globals.find(b.name).get.value)
+    }
+  }
+
+  def getSymbols = outer.getSymbols ++ template.globals.getSymbols.keys.map(name => (name, find(name).get))
+
+  def chain = new LexicalEnvironment(this)
+  def depth(x: Int) = outer.depth(x + 1)
+
+  def bind(sbl: Symbol, value: LispObject) {
+    throw new UnsupportedOperationException
+  }
+
+  def intern(symbol: Symbol) = throw new UnsupportedOperationException
+}
+
+/*
+ * A bounded pool of runtimes cloned from a template.  acquire hands out an idle runtime, clones a new one
+ * while fewer than size exist and waits for one to be released otherwise.  Released runtimes are reset
+ * before they are handed out again.
+ */
+final class RuntimePool(val template: RuntimeTemplate, val size: Int) {
+
+  private val idle = new LinkedBlockingQueue[Runtime]
+  private val created = new AtomicInteger
+
+  def this(size: Int) = this(RuntimeTemplate.bootstrapped, size)
+
+  private def create(): Runtime = {
+    if (created.incrementAndGet() <= size) {
+      try {
+        return template.newRuntime
+      } catch {
+        case e: Throwable => {
+          created.decrementAndGet()
+          throw e
+        }
+      }
+    }
+    created.decrementAndGet()
+    null
+  }
+
+  def acquire(): Runtime = {
+    val runtime = idle.poll()
+    if (runtime ne null) return runtime
+    val fresh = create()
+    if (fresh ne null) fresh else idle.take()
+  }
+
+  // An idle runtime, or null if none is released within the timeout
+  def acquire(timeout: Long, unit: TimeUnit): Runtime = {
+    val runtime = idle.poll()
+    if (runtime ne null) return runtime
+    val fresh = create()
+    if (fresh ne null) fresh else idle.poll(timeout, unit)
+  }
+
+  def release(runtime: Runtime) {
+    try {
+      runtime.reset()
+      idle.offer(runtime)
+    } catch {
+      case e: Exception => created.decrementAndGet()
+    }
+  }
+
+  def apply[T](body: Runtime => T): T = {
+    val runtime = acquire()
+    try body(runtime) finally release(runtime)
+  }
+
+  // Clones every runtime of the pool up front, so acquiring one never has to
+  def fill() {
+    var runtime = create()
+    while (runtime ne null) {
+      idle.offer(runtime)
+      runtime = create()
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package org.starlisp.core
 
-import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.ConcurrentHashMap
 
 trait Environment {
   def getSymbols: Map[String, Symbol]
@@ -17,35 +18,112 @@ trait Environment {
 
   def intern(symbol: Symbol): Symbol
   def intern(str: String): Symbol = intern(new Symbol(str))
+
+  // the version of the bindings of the runtime this environment belongs to
+  def version: BindingVersion
   def intern(str: String, value: LispObject) : Symbol = intern(new Symbol(str, value))
+
+  // The value bound to name, or Environment.Unbound
+  def lookup(name: String): LispObject = find(name) match {
+    case Some(sym) => sym.value
+    case None => Environment.Unbound
+  }
+
+  // Sets the value of an existing binding of name, false if there is none
+  def assign(name: String, value: LispObject): Boolean = find(name) match {
+    case Some(sym) => {
+      sym.value = value
+      true
+    }
+    case None => false
+  }
+}
+
+object Environment {
+  object Unbound extends LispObject
+}
+
+/*
+ * Bumped whenever a binding appears in a runtime that could hide one found before: a new binding in
+ * one of its environments, or a name becoming the parameter of a lambda it invokes, and with it
+ * dynamically bindable by any call.  Caches of resolved bindings are valid as long as the version
+ * hasn't changed.  Each runtime has its own, shared by the environments chained from its system
+ * environment, so runtimes don't invalidate each other's caches.
+ */
+final class BindingVersion {
+
+  private val counter = new AtomicInteger
+  private val parameters = new ConcurrentHashMap[String, java.lang.Boolean]
+
+  def get: Int = counter.get
+
+  def bump() {
+    counter.incrementAndGet()
+  }
+
+  def isParameter(name: String) = parameters.containsKey(name)
+
+  def parameter(name: String) {
+    if (parameters.putIfAbsent(name, java.lang.Boolean.TRUE) eq null) bump()
+  }
+
+  private[core] def added(symbol: Symbol): Symbol = {
+    bump()
+    symbol
+  }
 }
 
+/*
+ * The bindings every Runtime starts from, shared by all of them: the symbols interned by Symbol and
+ * nothing else.  They can't be rebound or assigned; setting one of them binds a symbol of the same
+ * name in the global environment of the runtime instead.
+ */
 object RootEnvironment extends Environment {
 
-  var index = new collection.mutable.HashMap[String, Symbol]
+  private val index = new ConcurrentHashMap[String, Symbol]
 
-  def chain: Environment = new LexicalEnvironment(this)
+  // nothing is looked up past the root, so a binding added here can't hide another
+  val version = new BindingVersion
+
+  // the system environment of a new runtime, which starts its own version
+  def chain: Environment = new LexicalEnvironment(this, new BindingVersion)
   def depth(x: Int) = x + 1
 
   def gensym = Symbol.gensym
 
   def bind(sbl: Symbol, value: LispObject) {
-    index.getOrElseUpdate(sbl.name, sbl).value = value
+    throw new UnsupportedOperationException
   }
 
-  def getSymbols: Map[String, Symbol] = index.toMap
+  override def assign(name: String, value: LispObject): Boolean = false
+
+  def getSymbols: Map[String, Symbol] = {
+    var symbols = Map.empty[String, Symbol]
+    val it = index.values.iterator
+    while (it.hasNext) {
+      val sym = it.next
+      symbols += sym.name -> sym
+    }
+    symbols
+  }
 
   def find(symbol: Symbol): Option[Symbol] = find(symbol.name)
-  def find(str: String): Option[Symbol] = index.get(str)
+  def find(str: String): Option[Symbol] = Option(index.get(str))
 
-  def intern(symbol: Symbol): Symbol = index.getOrElseUpdate(symbol.name, symbol)
+  def intern(symbol: Symbol): Symbol = {
+    val prev = index.putIfAbsent(symbol.name, symbol)
+    if (prev ne null) prev else symbol
+  }
 }
 
 class FinalizedEnvironment(symbols: Map[String, Symbol]) extends Environment {
 
   def getSymbols = symbols
 
-  def chain = new LexicalEnvironment(this)
+  // never changes
+  val version = new BindingVersion
+
+  def chain = new LexicalEnvironment(this, new BindingVersion)
 
   def depth(x: Int) = x + 1
 
@@ -60,21 +138,34 @@ class FinalizedEnvironment(symbols: Map[String, Symbol]) extends Environment {
   def intern(symbol: Symbol) = throw new UnsupportedOperationException
 }
 
-class LexicalEnvironment(var proxy: Environment) extends Environment {
+/*
+ * Bindings made on top of another environment.  Futures evaluate in the environments of the runtime
+ * that made them, so bindings may be added and looked up from several threads at once.
+ */
+class LexicalEnvironment(@volatile var proxy: Environment, val version: BindingVersion) extends Environment {
+
+  def this(proxy: Environment) = this(proxy, proxy.version)
 
-  class ActiveEnvironment(outer: Environment) extends Environment {
-    var index = new collection.mutable.HashMap[String, Symbol]
+  class ActiveEnvironment(val outer: Environment) extends Environment {
+    val index = new ConcurrentHashMap[String, Symbol]
 
     override def find(str: String) = {
       val x = index.get(str)
-      if (x eq None) {
-        outer.find(str)
-      } else {
-        x
+      if (x eq null) outer.find(str) else Some(x)
+    }
+
+    def symbols: Map[String, Symbol] = {
+      var symbols = Map.empty[String, Symbol]
+      val it = index.values.iterator
+      while (it.hasNext) {
+        val sym = it.next
+        symbols += sym.name -> sym
       }
+      symbols
     }
 
-    def getSymbols = outer.getSymbols ++ index.toMap // override deeper symbols
+    def getSymbols = outer.getSymbols ++ symbols // override deeper symbols
+    def version = outer.version
     def chain = throw new UnsupportedOperationException
     def depth(x: Int) = outer.depth(x + 1)
     def bind(sbl: Symbol, value: LispObject) { throw new UnsupportedOperationException }
@@ -82,11 +173,42 @@ class LexicalEnvironment(var proxy: Environment) extends Environment {
     def intern(symbol: Symbol) = throw new UnsupportedOperationException
   }
 
-  private def getWritableRouter: ActiveEnvironment = {
-    if (!proxy.isInstanceOf[ActiveEnvironment]) {
-      proxy = new ActiveEnvironment(proxy)
+  private def getWritableRouter: ActiveEnvironment = proxy match {
+    case active: ActiveEnvironment => active
+    case _ => synchronized {
+      if (!proxy.isInstanceOf[ActiveEnvironment]) {
+        proxy = new ActiveEnvironment(proxy)
+      }
+      proxy.asInstanceOf[ActiveEnvironment]
     }
-    proxy.asInstanceOf[ActiveEnvironment]
+  }
+
+  // the binding of name made here, adding symbol as the binding if there is none
+  private def add(name: String, symbol: => Symbol): Symbol = {
+    val index = getWritableRouter.index
+    val sym = index.get(name)
+    if (sym ne null) return sym
+    val fresh = symbol
+    val prev = index.putIfAbsent(name, fresh)
+    if (prev ne null) prev else version.added(fresh)
+  }
+
+  // the environment this one was chained from
+  def parent: Environment = proxy match {
+    case active: ActiveEnvironment => active.outer
+    case outer => outer
+  }
+
+  // the bindings made in this environment itself
+  def ownSymbols: Map[String, Symbol] = proxy match {
+    case active: ActiveEnvironment => active.symbols
+    case _ => Map.empty
+  }
+
+  // Drops the bindings made in this environment
+  def clear() {
+    synchronized { proxy = parent }
+    version.bump()
   }
 
   // TODO: preallocate environments in an array for cache locality?
@@ -94,7 +216,7 @@ class LexicalEnvironment(var proxy: Environment) extends Environment {
   def depth(x: Int = 0) = proxy.depth(x + 1)
 
   def bind(sbl: Symbol, value: LispObject) {
-    getWritableRouter.index.getOrElseUpdate(sbl.name, new Symbol(sbl.name, sbl.value)).value = value
+    add(sbl.name, new Symbol(sbl.name, sbl.value)).value = value
   }
 
   def getSymbols = proxy.getSymbols
@@ -102,7 +224,95 @@ class LexicalEnvironment(var proxy: Environment) extends Environment {
   def find(symbol: Symbol): Option[Symbol] = proxy.find(symbol.name)
   def find(str: String): Option[Symbol] = proxy.find(str)
 
-  def intern(symbol: Symbol): Symbol = getWritableRouter.index.getOrElseUpdate(symbol.name, symbol)
+  override def lookup(name: String): LispObject = proxy match {
+    case active: ActiveEnvironment => {
+      val sym = active.index.get(name)
+      if (sym ne null) sym.value else active.outer.lookup(name)
+    }
+    case outer => outer.lookup(name)
+  }
+
+  override def assign(name: String, value: LispObject): Boolean = proxy match {
+    case active: ActiveEnvironment => {
+      val sym = active.index.get(name)
+      if (sym eq null) return active.outer.assign(name, value)
+      sym.value = value
+      true
+    }
+    case outer => outer.assign(name, value)
+  }
+
+  def intern(symbol: Symbol): Symbol = add(symbol.name, symbol)
+}
+
+/*
+ * The bindings of a lambda invocation: the parameter names of the lambda and a slot per name.
+ * Analyzed code addresses slots by index, name lookups only happen for dynamic references.
+ */
+final class Frame(val names: Array[Symbol], val values: Array[LispObject], val parent: Environment) extends Environment {
+
+  // the last binding of a name wins, as when binding the parameters one after another
+  def indexOf(name: String): Int = {
+    var i = names.length - 1
+    while (i >= 0) {
+      if ((names(i) ne null) && names(i).name == name) return i
+      i -= 1
+    }
+    -1
+  }
+
+  override def lookup(name: String): LispObject = {
+    var env: Environment = this
+    while (env.isInstanceOf[Frame]) {
+      val frame = env.asInstanceOf[Frame]
+      val i = frame.indexOf(name)
+      if (i >= 0) return frame.values(i)
+      env = frame.parent
+    }
+    env.lookup(name)
+  }
+
+  override def assign(name: String, value: LispObject): Boolean = {
+    var env: Environment = this
+    while (env.isInstanceOf[Frame]) {
+      val frame = env.asInstanceOf[Frame]
+      val i = frame.indexOf(name)
+      if (i >= 0) {
+        frame.values(i) = value
+        return true
+      }
+      env = frame.parent
+    }
+    env.assign(name, value)
+  }
+
+  // slots aren't symbols, so a binding found here is a copy; use assign to change it
+  def find(str: String): Option[Symbol] = {
+    var env: Environment = this
+    while (env.isInstanceOf[Frame]) {
+      val frame = env.asInstanceOf[Frame]
+      val i = frame.indexOf(str)
+      if (i >= 0) return Some(new Symbol(str, frame.values(i)))
+      env = frame.parent
+    }
+    env.find(str)
+  }
+  def find(symbol: Symbol): Option[Symbol] = find(symbol.name)
+
+  def version = parent.version
+
+  def getSymbols = parent.getSymbols ++ names.indices.filter(names(_) ne null).map(i => (names(i).name, new Symbol(names(i).name, values(i))))
+
+  def chain: Environment = new LexicalEnvironment(this)
+  def depth(x: Int = 0) = parent.depth(x + 1)
+
+  def bind(sbl: Symbol, value: LispObject) {
+    val i = indexOf(sbl.name)
+    if (i < 0) throw new UnsupportedOperationException
+    values(i) = value
+  }
+
+  def intern(symbol: Symbol) = throw new UnsupportedOperationException
 }
 
 object Symbol {
@@ -113,31 +323,45 @@ object Symbol {
 
   def gensym = new Symbol("G%d".format(genSymCounter.getAndIncrement))
 
+  private val keywords = new ConcurrentHashMap[String, Symbol]
+
+  // symbols read as :name evaluate to themselves
+  def keyword(name: String): Symbol = {
+    val sym = keywords.get(name)
+    if (sym ne null) return sym
+    val kw = new Symbol(name)
+    kw.value = kw
+    val prev = keywords.putIfAbsent(name, kw)
+    if (prev ne null) prev else kw
+  }
+
+  def isKeyword(sym: Symbol): Boolean = keywords.get(sym.name) eq sym
+
   val internalError = intern("internal-error")
   val t: Symbol = intern("t")
   val standardOutput = intern("*standard-output*", new LispOutputStreamWriter(System.out))
   val standardError = intern("*standard-error*", new LispOutputStreamWriter(System.err))
 
   val lambda = intern(new Procedure("lambda") {
-    def apply(env: Environment, head: Cell, eval: ((LispObject, Environment) => LispObject)): LispObject = {
+    def apply(env: Environment, head: Cell, eval: Evaluator): LispObject = {
       head
     }
   })
 
   val `macro` = intern(new Procedure("macro") {
-    def apply(env: Environment, head: Cell, eval: ((LispObject, Environment) => LispObject)): LispObject = {
+    def apply(env: Environment, head: Cell, eval: Evaluator): LispObject = {
       head
     }
   })
 
   val quote = intern(new Procedure("quote") {
-    def apply(env: Environment, list: Cell, eval: ((LispObject, Environment) => LispObject)): LispObject = {
+    def apply(env: Environment, list: Cell, eval: Evaluator): LispObject = {
       list.cadr
     }
   })
 
   val _if = intern(new Procedure("if") {
-    def apply(env: Environment, head: Cell, eval: ((LispObject, Environment) => LispObject)): LispObject = {
+    def apply(env: Environment, head: Cell, eval: Evaluator): LispObject = {
       val list = head.rest
       Option(eval(list.car, env)) match {
         case Some(_) => eval(list.cadr, env)
@@ -151,9 +375,13 @@ object Symbol {
 
   val in = intern("in")
   val out = intern("out")
+  val newInstance = intern("newInstance")
 
   Symbol.t.value = Symbol.t
 
+  // Symbols every Runtime sees, whose values no runtime may change
+  def isShared(sym: Symbol): Boolean = (RootEnvironment.find(sym.name) exists (_ eq sym)) || isKeyword(sym)
+
   private def intern(proc: Procedure): Symbol = env.intern(proc.name, proc)
   private def intern(sym: Symbol): Symbol = env.intern(sym)
   private def intern(str: String): Symbol = intern(new Symbol(str))
@@ -0,0 +1,32 @@
+package org.starlisp.core
+
+class ArrayTest extends LispTestCase {
+
+  // aset returns the element it replaced, whatever the arrays store their elements as
+  def testAsetReturnsTheReplacedElement() {
+    for (kind <- Seq("t", "fixnum", "byte")) {
+      eval("(setq a (make-array 4 :element-type '" + kind + " :initial-element 7))")
+      assertEval("7", "(aset a 1 9)")
+      assertEval("9", "(aset a 1 3)")
+      assertEval("3", "(aref a 1)")
+    }
+    eval("(setq a (make-array 4 :element-type 'flonum :initial-element 1.5))")
+    assertEval("1.5", "(aset a 1 2.5)")
+    assertEval("2.5", "(aref a 1)")
+  }
+
+  def testArraysFromLists() {
+    eval("(setq a (make-array '(1 2 3) :element-type 'fixnum))")
+    assertEval("(1 2 3)", "(list (aref a 0) (aref a 1) (aref a 2))")
+    eval("(setq b (make-array '(a (b) 3)))")
+    assertEval("(b)", "(aref b 1)")
+  }
+
+  def testTypedArraysRejectOtherElements() {
+    eval("(setq a (make-array 2 :element-type 'fixnum))")
+    assertError("Only fixnums", "(aset a 0 'x)")
+    eval("(setq b (make-array 2 :element-type 'byte))")
+    assertError("from 0 to 255", "(aset b 0 256)")
+    assertEval("0", "(aref b 1)")
+  }
+}
@@ -0,0 +1,95 @@
+package org.starlisp.core
+
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import junit.framework.Assert._
+
+class BinaryFormatTest extends LispTestCase {
+
+  private def bytes(objs: LispObject*): Array[Byte] = {
+    val out = new ByteArrayOutputStream
+    val writer = new BinaryWriter(runtime, out)
+    objs.foreach(writer.write)
+    writer.flush()
+    out.toByteArray
+  }
+
+  private def roundTrip(obj: LispObject): LispObject =
+    new BinaryReader(runtime, ByteBuffer.wrap(bytes(obj)), runtime.globalEnv).read()
+
+  private def assertRoundTrip(source: String) {
+    val obj = eval(source)
+    assertEquals(source, LispObject.toStringOrNil(obj), LispObject.toStringOrNil(roundTrip(obj)))
+  }
+
+  def testNumbers() {
+    val longs = Seq(0L, -32, 191, 192, -33, 1L << 40, Long.MaxValue, Long.MinValue)
+    for (n <- longs) assertEquals(n, roundTrip(LispFixnum.create(n)).asInstanceOf[LispFixnum].n)
+    val doubles = Seq(0.0, -0.0, 37.42, -1e-7, 1e300, math.Pi, Double.NaN, Double.NegativeInfinity)
+    for (d <- doubles) {
+      val back = roundTrip(new LispFlonum(d)).asInstanceOf[LispFlonum].n
+      assertEquals(java.lang.Double.doubleToRawLongBits(d), java.lang.Double.doubleToRawLongBits(back))
+    }
+    assertRoundTrip("123456789012345678901234567890")
+    assertRoundTrip("-123456789012345678901234567890")
+  }
+
+  def testCompactEncodings() {
+    assertEquals(1, bytes(LispFixnum.create(BinaryFormat.MinSmallFixnum)).length)
+    assertEquals(1, bytes(LispFixnum.create(BinaryFormat.MaxSmallFixnum)).length)
+    assertEquals(4, bytes(new LispFlonum(37.42)).length)
+    assertEquals(9, bytes(new LispFlonum(math.Pi)).length)
+  }
+
+  def testData() {
+    assertRoundTrip("'(a (b . c) \"string é\" #\\x nil t)")
+    assertRoundTrip("(make-array '(1 2 3) :element-type 'fixnum)")
+    assertRoundTrip("(make-array '(1.5 2.5) :element-type 'flonum)")
+    assertRoundTrip("(make-array '(0 255) :element-type 'byte)")
+    assertRoundTrip("(make-array '(a \"b\" 3))")
+    val table = roundTrip(eval("(let ((h (make-hash-table))) (puthash 'k '(1 2) h) h)"))
+    assertEquals("(1 2)", LispObject.toStringOrNil(table.asInstanceOf[LispHashTable].get(eval("'k"), null)))
+  }
+
+  // names bound in the reading environment come back as their binding, builtins as themselves
+  def testSymbolsAndProcedures() {
+    assertSame(eval("'car"), roundTrip(eval("'car")))
+    assertSame(eval("car"), roundTrip(eval("car")))
+    assertSame(eval("':key"), roundTrip(eval("':key")))
+  }
+
+  def testSharedAndCircularStructure() {
+    eval("(setq tail (list 1 2)) (setq both (list tail tail))")
+    val both = roundTrip(eval("both")).asInstanceOf[Cell]
+    assertSame(both.car, both.cdr.asInstanceOf[Cell].car)
+    eval("(setq ring (list 1 2 3)) (rplacd (cddr ring) ring)")
+    val ring = roundTrip(eval("ring")).asInstanceOf[Cell]
+    assertSame(ring, ring.cdr.asInstanceOf[Cell].cdr.asInstanceOf[Cell].cdr)
+  }
+
+  def testLispPrimitives() {
+    assertEval("(1 \"two\" 3.5)", "(read-binary (write-binary '(1 \"two\" 3.5)))")
+  }
+
+  def testUnwritableObjects() {
+    eval("(defun f (x) x) (compile 'f)")
+    assertError("Can't write", "(write-binary f)")
+  }
+
+  def testMalformedData() {
+    val data = bytes(eval("'(1 2 3)"))
+    val truncated = java.util.Arrays.copyOf(data, data.length - 1)
+    try {
+      new BinaryReader(runtime, ByteBuffer.wrap(truncated), runtime.globalEnv).read()
+      fail("read truncated data")
+    } catch {
+      case e: java.nio.BufferUnderflowException =>
+    }
+    try {
+      new BinaryReader(runtime, ByteBuffer.wrap(Array[Byte](31)), runtime.globalEnv).read()
+      fail("read tag 31")
+    } catch {
+      case e: LispException => assertTrue(e.getMessage, e.getMessage.contains("Malformed"))
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package org.starlisp.core
+
+import junit.framework.Assert._
+
+class CompilerTest extends LispTestCase {
+
+  // Asserts that call gives the same value before and after compiling name
+  private def assertCompiledEval(expected: String, name: String, call: String) {
+    assertEval(expected, call)
+    eval("(compile '" + name + ")")
+    assertTrue(eval(name).isInstanceOf[CompiledProcedure])
+    assertEval(expected, call)
+  }
+
+  def testCompiledFunctionsRunCompiled() {
+    eval("(defun where () (running-compiled?))")
+    assertEval("nil", "(where)")
+    eval("(compile 'where)")
+    assertEval("t", "(where)")
+  }
+
+  def testArithmeticAndPredicates() {
+    eval("(defun f (a b) (list (+ a b) (- a b) (* a b) (/ a b) (< a b) (>= a b) (eq? a a) (atom? a)))")
+    assertCompiledEval("(12 8 20 5 nil t t t)", "f", "(f 10 2)")
+  }
+
+  def testSelfTailCallsDontGrowTheStack() {
+    eval("(defun count (n acc) (if (= n 0) acc (count (- n 1) (+ acc 1))))")
+    assertCompiledEval("1000000", "count", "(count 1000000 0)")
+  }
+
+  def testCompiledLoopsCanBeInterrupted() {
+    eval("(defun spin (n) (spin (+ n 1)))")
+    eval("(compile 'spin)")
+    @volatile var failure: Throwable = null
+    val thread = new Thread(new Runnable {
+      def run() {
+        try eval("(spin 0)") catch { case e: Throwable => failure = e }
+      }
+    })
+    thread.start()
+    Thread.sleep(200)
+    thread.interrupt()
+    thread.join(10000)
+    assertFalse(thread.isAlive)
+    assertTrue(String.valueOf(failure), failure.isInstanceOf[LispException] && failure.getMessage.contains("Interrupted"))
+  }
+
+  // each compiled class gets a name of its own, however many threads compile at once
+  def testConcurrentCompiles() {
+    val lambda = eval("'(lambda (x) (+ x 1))").asInstanceOf[Cell]
+    val procedures = new java.util.concurrent.ConcurrentLinkedQueue[CompiledProcedure]
+    val threads = Array.fill(8)(new Thread(new Runnable {
+      def run() {
+        for (i <- 1 to 50) procedures.add(runtime.compiler.compile(null, lambda))
+      }
+    }))
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    assertEquals(400, procedures.size)
+    val names = new java.util.HashSet[String]
+    val it = procedures.iterator
+    while (it.hasNext) names.add(it.next().getClass.getName)
+    assertEquals(400, names.size)
+  }
+
+  def testNonTailSelfCalls() {
+    eval("(defun fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))")
+    assertCompiledEval("6765", "fib", "(fib 20)")
+  }
+
+  def testLetsAndClosuresOverParameters() {
+    eval("(defun f (k) (let ((j (* k 2))) (mapcar (lambda (x) (+ x j k)) '(1 2 3))))")
+    assertCompiledEval("(10 11 12)", "f", "(f 3)")
+  }
+
+  def testMacrosExpandedAtCompileTime() {
+    eval("(defun f (x) (cond ((= x 1) 'one) ((= x 2) 'two) (t 'many)))")
+    assertCompiledEval("(one two many)", "f", "(list (f 1) (f 2) (f 3))")
+  }
+
+  def testRedefinedBuiltinsAreCalled() {
+    eval("(defun f (a b) (+ a b))")
+    eval("(compile 'f)")
+    assertEval("3", "(f 1 2)")
+    eval("(setq + (lambda (a b) (list a b)))")
+    assertEval("(1 2)", "(f 1 2)")
+  }
+
+  def testParametersAreDynamicInCompiledCode() {
+    eval("(defun get-dyn () dyn) (defun f (dyn) (get-dyn))")
+    assertCompiledEval("5", "f", "(f 5)")
+  }
+
+  // procedures evaluating their own arguments get the form as written, not its evaluated arguments
+  def testProceduresEvaluatingTheirArguments() {
+    eval("(*cold-boot 8)")
+    eval("(defun w () (*when (=!! (self-address!!) (!! 3)) (*sum (!! 1))))")
+    assertCompiledEval("1", "w", "(w)")
+    eval("(defun fu () (future (+ 1 2)))")
+    eval("(compile 'fu)")
+    assertTrue(eval("(fu)").isInstanceOf[LispFuture])
+    assertEval("3", "(await (fu))")
+  }
+
+  def testProceduresEvaluatingTheirArgumentsCantBeCalledWithValues() {
+    assertError("evaluates its own arguments", "(pmap *when '(1 2))")
+  }
+}
@@ -0,0 +1,69 @@
+package org.starlisp.core
+
+import java.io.ByteArrayOutputStream
+import java.net.{HttpURLConnection, ServerSocket, URL}
+import junit.framework.TestCase
+import junit.framework.Assert._
+
+class EvalServerTest extends TestCase {
+
+  private var server: EvalServer = _
+
+  override def setUp() {
+    val socket = new ServerSocket(0)
+    val port = socket.getLocalPort
+    socket.close()
+    server = new EvalServer(port, maxConcurrent = 2, timeout = 500).start()
+  }
+
+  override def tearDown() {
+    server.stop()
+  }
+
+  private def post(forms: String, query: String = ""): String = {
+    val connection = new URL("http://localhost:" + server.port + "/eval" + query).openConnection.asInstanceOf[HttpURLConnection]
+    connection.setRequestMethod("POST")
+    connection.setDoOutput(true)
+    connection.getOutputStream.write(forms.getBytes("UTF-8"))
+    connection.getOutputStream.close()
+    val in = connection.getInputStream
+    val out = new ByteArrayOutputStream
+    val buf = new Array[Byte](8192)
+    var n = in.read(buf)
+    while (n >= 0) {
+      out.write(buf, 0, n)
+      n = in.read(buf)
+    }
+    in.close()
+    out.toString("UTF-8")
+  }
+
+  def testEvaluatesForms() {
+    assertEquals("3\n(1 2)\n", post("(+ 1 2) (list 1 2)"))
+    assertTrue(post("1 (no-such-function) 2").startsWith("1\nerror: "))
+  }
+
+  def testPooledRuntimesAreReset() {
+    post("(setq leftover 1)")
+    post("(setq leftover 2)")
+    assertTrue(post("leftover").startsWith("error:"))
+  }
+
+  def testSessionsKeepTheirDefinitions() {
+    post("(defun twice (x) (* x 2))", "?session=a")
+    assertEquals("8\n", post("(twice 4)", "?session=a"))
+    assertTrue(post("(twice 4)", "?session=b").startsWith("error:"))
+  }
+
+  def testTimesOutInterpretedLoops() {
+    val response = post("(defun spin (n) (spin (+ n 1))) (spin 0)")
+    assertTrue(response, response.endsWith(")\nerror: Timed out after 500 ms.\n"))
+  }
+
+  // compiled loops jump back without Runtime.run and poll for interrupts themselves
+  def testTimesOutCompiledLoops() {
+    val response = post("(defun spin (n) (spin (+ n 1))) (compile 'spin) (spin 0)")
+    assertTrue(response, response.endsWith("error: Timed out after 500 ms.\n"))
+    assertEquals("3\n", post("(+ 1 2)"))
+  }
+}
@@ -0,0 +1,79 @@
+package org.starlisp.core
+
+import java.io.{File, FileOutputStream}
+import junit.framework.Assert._
+
+class FaslTest extends LispTestCase {
+
+  private var dir: File = _
+  private var source: File = _
+
+  private val text = "(defmacro twice (a) (list '* 2 (cadr a)))\n(defun quad (x) (twice (twice x)))\n(setq loaded 'source)\n"
+
+  override def setUp() {
+    super.setUp()
+    dir = File.createTempFile("starlisp", "")
+    dir.delete()
+    dir.mkdir()
+    source = new File(dir, "m.ljsp")
+    write(source, text)
+  }
+
+  override def tearDown() {
+    dir.listFiles.foreach(_.delete())
+    dir.delete()
+  }
+
+  private def write(file: File, contents: String) {
+    val out = new FileOutputStream(file)
+    try out.write(contents.getBytes("UTF-8")) finally out.close()
+  }
+
+  private def quoted(file: File) = "\"" + file.getPath + "\""
+
+  private def compileFile(): File = {
+    val fasl = new File(show("(compile-file " + quoted(source) + ")").replace("\"", ""))
+    assertEquals(new File(dir, "m.fasl"), fasl)
+    fasl
+  }
+
+  def testLoadsTheFasl() {
+    compileFile()
+    val fresh = RuntimeTemplate.bootstrapped.newRuntime
+    assertEquals("t", show("(%load-fasl " + quoted(source) + ")", fresh))
+    assertEquals("(12 source)", show("(list (quad 3) loaded)", fresh))
+  }
+
+  // compiling evaluates the forms too, as loading would
+  def testCompilingLoads() {
+    compileFile()
+    assertEval("12", "(quad 3)")
+  }
+
+  def testRejectsAFaslOfAChangedSource() {
+    compileFile()
+    write(source, text.replace("'source", "'edited"))
+    assertEval("nil", "(%load-fasl " + quoted(source) + ")")
+    eval("(load " + quoted(source) + ")")
+    assertEval("edited", "loaded")
+  }
+
+  // a change keeping the length is caught by the checksum, a touch without a change isn't a change
+  def testChecksOnlyChangedSources() {
+    compileFile()
+    val modified = source.lastModified
+    write(source, text.replace("'source", "'sourcf"))
+    source.setLastModified(modified + 5000)
+    assertEval("nil", "(%load-fasl " + quoted(source) + ")")
+    write(source, text)
+    source.setLastModified(modified + 10000)
+    assertEval("t", "(%load-fasl " + quoted(source) + ")")
+  }
+
+  def testIgnoresOtherFiles() {
+    write(new File(dir, "m.fasl"), "not a fasl, just text long enough for a header")
+    assertEval("nil", "(%load-fasl " + quoted(source) + ")")
+    eval("(load " + quoted(source) + ")")
+    assertEval("source", "loaded")
+  }
+}
@@ -0,0 +1,67 @@
+package org.starlisp.core
+
+import junit.framework.Assert._
+
+class FutureTest extends LispTestCase {
+
+  override def setUp() {
+    super.setUp()
+    eval("(defun spin (n) (spin (+ n 1)))")
+  }
+
+  override def tearDown() {
+    runtime.cancelFutures()
+  }
+
+  private def awaitDone(future: LispFuture) {
+    val deadline = System.currentTimeMillis + 10000
+    while (!future.isDone && System.currentTimeMillis < deadline) Thread.sleep(10)
+    assertTrue(future.isDone)
+  }
+
+  def testFuturesEvaluateTheirForms() {
+    assertEval("3", "(await (future (+ 1 2)))")
+    assertEval("10", "(let ((k 5)) (await (future (setq k (* k 2)) k)))")
+    assertEval("3", "(await (future (+ (await (future 1)) (await (future 2)))))")
+  }
+
+  def testAwaitThrowsWhatTheFutureThrew() {
+    assertError("bad", "(await (future (throw 'boom \"bad\")))")
+  }
+
+  def testAwaitTimesOut() {
+    assertEval("late", "(await (future (spin 0)) 50 'late)")
+  }
+
+  def testPmapAndPcall() {
+    val numbers = (1 to 20000).mkString("'(", " ", ")")
+    eval("(defun total (l acc) (if l (total (cdr l) (+ acc (car l))) acc))")
+    assertEval(String.valueOf((1 to 20000).map(i => i.toLong * i).sum), "(total (pmap (lambda (x) (* x x)) " + numbers + ") 0)")
+    assertEval("(11 22)", "(pmap + '(1 2 3) '(10 20))")
+    assertEval("26", "(pcall + (* 2 3) (* 4 5))")
+  }
+
+  def testCancelledFuturesStop() {
+    val future = eval("(future (spin 0))").asInstanceOf[LispFuture]
+    runtime.cancelFutures()
+    awaitDone(future)
+    assertTrue(runtime.futures.isEmpty)
+  }
+
+  // interrupting an evaluation cancels the futures it started
+  def testInterruptingCancelsFutures() {
+    val future = eval("(setq f (future (spin 0)))").asInstanceOf[LispFuture]
+    @volatile var failure: Throwable = null
+    val thread = new Thread(new Runnable {
+      def run() {
+        try eval("(await f)") catch { case e: Throwable => failure = e }
+      }
+    })
+    thread.start()
+    Thread.sleep(100)
+    thread.interrupt()
+    thread.join(10000)
+    assertTrue(String.valueOf(failure), failure.isInstanceOf[LispException] && failure.getMessage.contains("Interrupted"))
+    awaitDone(future)
+  }
+}
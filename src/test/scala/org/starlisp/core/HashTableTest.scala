@@ -0,0 +1,47 @@
+package org.starlisp.core
+
+import junit.framework.Assert._
+
+class HashTableTest extends LispTestCase {
+
+  def testKeysCompareByTheTableTest() {
+    eval("(setq e (make-hash-table :test 'eq)) (setq l (make-hash-table)) (setq q (make-hash-table :test 'equal))")
+    eval("(puthash (list 1) 'list e) (puthash 'k 'sym e)")
+    assertEval("(none sym)", "(list (gethash (list 1) e 'none) (gethash 'k e))")
+    eval("(puthash 100000000000000000000 'big l) (puthash 1.5 'flo l)")
+    assertEval("(big flo nil)", "(list (gethash 100000000000000000000 l) (gethash 1.5 l) (gethash 1.0 l))")
+    eval("(puthash \"k\" 1 q) (puthash (list 1 2) 2 q)")
+    assertEval("(1 2)", "(list (gethash \"k\" q) (gethash (list 1 2) q))")
+    assertError("Unknown hash table test", "(make-hash-table :test 'foo)")
+  }
+
+  def testRemovingAndCounting() {
+    eval("(setq h (make-hash-table)) (puthash 1 10 h) (puthash 2 20 h) (puthash 1 11 h)")
+    assertEval("2", "(hash-table-count h)")
+    assertEval("(t nil)", "(list (remhash 1 h) (remhash 1 h))")
+    assertEval("1", "(hash-table-count h)")
+    eval("(clrhash h)")
+    assertEval("0", "(hash-table-count h)")
+  }
+
+  def testMaphash() {
+    eval("(setq h (make-hash-table)) (puthash 1 10 h) (puthash 2 20 h) (setq sum 0)")
+    eval("(maphash (lambda (k v) (setq sum (+ sum k v))) h)")
+    assertEval("33", "sum")
+  }
+
+  def testConcurrentTables() {
+    val table = eval("(make-hash-table :test 'equal :concurrent t)").asInstanceOf[LispHashTable]
+    val threads = (0 until 4).map { i =>
+      new Thread(new Runnable {
+        def run() {
+          for (j <- 0 until 1000) table.put(LispFixnum.create(i * 1000 + j), LispFixnum.create(j))
+        }
+      })
+    }
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    assertEquals(4000, table.size)
+    assertEquals("999", table.get(LispFixnum.create(3999), null).toString)
+  }
+}
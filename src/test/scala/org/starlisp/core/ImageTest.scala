@@ -0,0 +1,62 @@
+package org.starlisp.core
+
+import java.io.File
+import junit.framework.Assert._
+
+class ImageTest extends LispTestCase {
+
+  private var file: File = _
+
+  override def setUp() {
+    super.setUp()
+    file = File.createTempFile("starlisp", ".img")
+  }
+
+  override def tearDown() {
+    file.delete()
+  }
+
+  private def saveAndLoad(): Runtime = {
+    eval("(save-image \"" + file.getPath + "\")")
+    Runtime.createFromImage(file.getPath)
+  }
+
+  def testDefinitionsSurviveTheRoundTrip() {
+    eval("(setq items (list 1 \"two\" 3.5 'four)) (setq shared (list items items))" +
+      "(setq table (make-hash-table)) (puthash 'k items table)" +
+      "(setq bytes (make-array '(1 2 255) :element-type 'byte))" +
+      "(defun twice (x) (* x 2))")
+    val loaded = saveAndLoad()
+    assertEquals("(1 \"two\" 3.5 four)", show("items", loaded))
+    assertEquals("t", show("(eq? (car shared) (cadr shared))", loaded))
+    assertEquals("t", show("(eq? (gethash 'k table) items)", loaded))
+    assertEquals("255", show("(aref bytes 2)", loaded))
+    assertEquals("8", show("(twice 4)", loaded))
+  }
+
+  // compiled procedures are compiled again on load, against the macros and builtins of the image
+  def testCompiledProceduresAreCompiledAgain() {
+    eval("(defun fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))" +
+      "(defun kind (x) (cond ((= x 1) 'one) (t (running-compiled?))))" +
+      "(compile 'fib) (compile 'kind) (setq also-fib fib)")
+    val loaded = saveAndLoad()
+    assertTrue(eval("fib", loaded).isInstanceOf[CompiledProcedure])
+    assertEquals("6765", show("(fib 20)", loaded))
+    assertEquals("t", show("(eq? fib also-fib)", loaded))
+    assertEquals("(one t)", show("(list (kind 1) (kind 2))", loaded))
+    eval("(defun fib (n) 'redefined)", loaded)
+    assertEquals("redefined", show("(fib 20)", loaded))
+  }
+
+  def testRejectsOtherFiles() {
+    val out = new java.io.FileOutputStream(file)
+    out.write("not an image".getBytes)
+    out.close()
+    try {
+      Runtime.createFromImage(file.getPath)
+      fail("loaded " + file)
+    } catch {
+      case e: LispException => assertTrue(e.getMessage, e.getMessage.contains("not an image"))
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package org.starlisp.core
+
+import junit.framework.Assert._
+
+class InterpreterTest extends LispTestCase {
+
+  def testEvaluatesForms() {
+    assertEval("3", "(+ 1 2)")
+    assertEval("(1 2 3)", "(list 1 2 3)")
+    assertEval("a", "'a")
+    assertEval("6", "(let ((a 1) (b 2)) (+ a b 3))")
+    assertEval("2", "(if nil 1 2)")
+  }
+
+  def testAnalyzedFormsSeeRedefinitions() {
+    eval("(defun f (x) (* x 2)) (defun g (x) (f x))")
+    assertEval("8", "(g 4)")
+    eval("(defun f (x) (+ x 1))")
+    assertEval("5", "(g 4)")
+  }
+
+  def testGlobalsAssignedAfterAnalysis() {
+    eval("(setq n 1) (defun get-n () n)")
+    assertEval("1", "(get-n)")
+    eval("(setq n 2)")
+    assertEval("2", "(get-n)")
+  }
+
+  // a parameter is bound dynamically, so a function called from its body sees it
+  def testParametersAreDynamic() {
+    eval("(defun f () dyn) (defun g (dyn) (f))")
+    assertEval("2", "(g 2)")
+    assertEval("(3 4)", "(mapcar g '(3 4))")
+  }
+
+  def testTailCallsDontGrowTheStack() {
+    eval("(defun count (n acc) (if (= n 0) acc (count (- n 1) (+ acc 1))))")
+    assertEval("1000000", "(count 1000000 0)")
+  }
+
+  def testMutualTailCalls() {
+    eval("(defun ev? (n) (if (= n 0) t (od? (- n 1)))) (defun od? (n) (if (= n 0) nil (ev? (- n 1))))")
+    assertEval("t", "(ev? 100000)")
+  }
+
+  def testNestedLambdasAddressEnclosingFrames() {
+    assertEval("(11 12 13)", "(let ((k 10)) (mapcar (lambda (x) (+ x k)) '(1 2 3)))")
+    assertEval("6", "((lambda (a) ((lambda (b) ((lambda (c) (+ a b c)) 3)) 2)) 1)")
+  }
+
+  def testRestParameters() {
+    eval("(defun rest-of (a . more) more)")
+    assertEval("(2 3)", "(rest-of 1 2 3)")
+    assertEval("nil", "(rest-of 1)")
+    assertError("Too few args", "(rest-of)")
+  }
+
+  def testMacroExpansionsAreCachedPerCallSite() {
+    eval("(defmacro twice (a) (list '+ (cadr a) (cadr a))) (defun use (y) (twice y))")
+    assertEval("6", "(use 3)")
+    eval("(use 3)")
+    val hits = runtime.expansionHits.get
+    assertEval("6", "(use 3)")
+    assertTrue(runtime.expansionHits.get > hits)
+  }
+
+  def testRedefinedMacrosExpandAgain() {
+    eval("(defmacro op (a) (list '+ (cadr a) 1)) (defun use (y) (op y))")
+    assertEval("4", "(use 3)")
+    eval("(defmacro op (a) (list '* (cadr a) 10))")
+    assertEval("30", "(use 3)")
+  }
+
+  // one call site going from a builtin to a lambda and to something that isn't a procedure
+  def testCallSitesFollowTheirName() {
+    eval("(defun g (x) (h x)) (setq h car)")
+    assertEval("1", "(g '(1 2))")
+    eval("(setq h (lambda (x) (cdr x)))")
+    assertEval("(2)", "(g '(1 2))")
+    eval("(setq h car)")
+    assertEval("1", "(g '(1 2))")
+    eval("(setq h 3)")
+    assertError("not a function", "(g '(1 2))")
+  }
+
+  // each arity up to and past the fixed-argument entry points, called directly and through apply
+  def testArgumentPassing() {
+    for (n <- 0 to 6) {
+      val params = (1 to n).map("a" + _).mkString(" ")
+      eval("(defun f" + n + " (" + params + ") (list " + params + "))")
+      val args = (1 to n).mkString(" ")
+      val expected = if (n == 0) "nil" else "(" + args + ")"
+      assertEval(expected, "(f" + n + " " + args + ")")
+      assertEval(expected, "(apply f" + n + " '(" + args + "))")
+    }
+    assertError("Too few args", "(f2 1)")
+    assertError("Too many args", "(f2 1 2 3)")
+    assertEval("none", "(gethash 'k (make-hash-table) 'none)")
+    assertError("Too few args", "(cons 1)")
+  }
+}
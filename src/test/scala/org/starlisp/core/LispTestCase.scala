@@ -0,0 +1,44 @@
+package org.starlisp.core
+
+import junit.framework.TestCase
+import junit.framework.Assert._
+
+/*
+ * Tests evaluating Lisp source, each in a fresh runtime cloned from the bootstrapped template.
+ */
+abstract class LispTestCase extends TestCase {
+
+  protected var runtime: Runtime = _
+
+  override def setUp() {
+    runtime = RuntimeTemplate.bootstrapped.newRuntime
+  }
+
+  // Evaluates the forms of source in order and returns the value of the last
+  protected def eval(source: String, in: Runtime = runtime): LispObject = {
+    val stream = in.inputStreamFromString(source)
+    var value: LispObject = null
+    var form = stream.read
+    while (!stream.eof) {
+      value = in.eval(form)
+      form = stream.read
+    }
+    value
+  }
+
+  protected def show(source: String, in: Runtime = runtime): String = LispObject.toStringOrNil(eval(source, in))
+
+  protected def assertEval(expected: String, source: String) {
+    assertEquals(source, expected, show(source))
+  }
+
+  // Asserts that evaluating source fails with a message containing message
+  protected def assertError(message: String, source: String) {
+    try {
+      eval(source)
+      fail("no error from " + source)
+    } catch {
+      case e: LispException => assertTrue(e.getMessage, e.getMessage.contains(message))
+    }
+  }
+}
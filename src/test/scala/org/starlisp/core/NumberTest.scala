@@ -0,0 +1,41 @@
+package org.starlisp.core
+
+import junit.framework.Assert._
+
+class NumberTest extends LispTestCase {
+
+  def testNaryArithmetic() {
+    assertEval("0", "(+)")
+    assertEval("1", "(*)")
+    assertEval("10", "(+ 1 2 3 4)")
+    assertEval("24", "(* 2 3 4)")
+    assertEval("-5", "(- 5)")
+    assertEval("4", "(- 10 1 2 3)")
+    assertEval("3", "(/ 7 2)")
+  }
+
+  // fixnum results that overflow come back as bignums
+  def testOverflowToBignums() {
+    assertEval("9223372036854775808", "(+ 9223372036854775807 1)")
+    assertEval("-9223372036854775809", "(- -9223372036854775808 1)")
+    assertEval("9223372036854775808", "(* -9223372036854775808 -1)")
+    assertEval("9223372036854775808", "(* 4611686018427387904 2)")
+    assertTrue(eval("(+ 9223372036854775807 1)").isInstanceOf[LispBigInt])
+    assertTrue(eval("(- 9223372036854775808 1)").isInstanceOf[LispFixnum])
+  }
+
+  def testMixedArithmetic() {
+    assertEval("3.5", "(+ 1 2.5)")
+    assertEval("-1.5", "(- 1.5)")
+    assertEval("t", "(= 1 1.0)")
+  }
+
+  def testNaryComparisons() {
+    assertEval("t", "(< 1 2 3)")
+    assertEval("nil", "(< 1 3 2)")
+    assertEval("t", "(> 3 2 1)")
+    assertEval("t", "(<= 1 1 2)")
+    assertEval("nil", "(>= 1 1 2)")
+    assertEval("t", "(< 1 9223372036854775808)")
+  }
+}
@@ -0,0 +1,82 @@
+package org.starlisp.core
+
+import junit.framework.Assert._
+
+class ReaderTest extends LispTestCase {
+
+  private def read(source: String): LispObject = runtime.inputStreamFromString(source).read
+
+  private def readAll(source: String): Seq[LispObject] = {
+    val stream = runtime.inputStreamFromString(source)
+    val forms = new collection.mutable.ArrayBuffer[LispObject]
+    var form = stream.read
+    while (!stream.eof) {
+      forms += form
+      form = stream.read
+    }
+    forms
+  }
+
+  def testReadsForms() {
+    assertEquals("(a (b . c) \"s\" 1)", LispObject.toStringOrNil(read("(a (b . c) \"s\" 1)")))
+    assertEquals("(quote x)", LispObject.toStringOrNil(read("'x")))
+    // #; reads as nil in place of the form it skips
+    assertEquals(Seq("1", "nil", "2"), readAll("1 ; comment\n #;(skipped) 2").map(LispObject.toStringOrNil))
+  }
+
+  // words and strings grow past the tokenizer's buffer, the input past its block
+  def testLongTokensAndInput() {
+    val name = "x" * 5000
+    assertEquals(name, read(name).asInstanceOf[Symbol].name)
+    assertEquals(5000, read("\"" + name + "\"").asInstanceOf[LispString].length)
+    val forms = readAll((1 to 10000).mkString(" "))
+    assertEquals(10000, forms.length)
+    assertEquals("10000", forms.last.toString)
+  }
+
+  def testErrorsTellWhere() {
+    val stream = runtime.inputStreamFromString("a\n  bc #x")
+    stream.read
+    stream.read
+    try {
+      stream.read
+      fail("read #x")
+    } catch {
+      case e: LispException => assertTrue(e.getMessage, e.getMessage.contains("line 2, column 7"))
+    }
+  }
+
+  def testNumbers() {
+    assertEquals(Seq("1", "-7", "3", "-0.5", "1500.0", "0.25", "1.234567890125E11"),
+      readAll("1 -7 +3 -0.5 1.5e3 .25 123456789012.5").map(_.toString))
+    assertTrue(read("9223372036854775807").isInstanceOf[LispFixnum])
+    assertTrue(read("-9223372036854775808").isInstanceOf[LispFixnum])
+    assertTrue(read("9223372036854775808").isInstanceOf[LispBigInt])
+    assertEquals("12345678901234567890", read("12345678901234567890").toString)
+  }
+
+  // flonums scanned without Double.parseDouble are the same doubles
+  def testFlonumsAreExact() {
+    val random = new java.util.Random(42)
+    for (i <- 1 to 1000) {
+      val text = (random.nextInt(2000000) - 1000000) + "." + random.nextInt(100000) + "e" + random.nextInt(30)
+      assertEquals(text, java.lang.Double.parseDouble(text), read(text).asInstanceOf[LispFlonum].n)
+    }
+  }
+
+  def testWordsThatArentNumbers() {
+    for (word <- Seq("1+", "-", "+", "1e", "1.2.3", "-a", "0x10", "1."))
+      assertTrue(word, read(word).isInstanceOf[Symbol])
+  }
+
+  // bound names read as their binding, others as a fresh symbol each time
+  def testNamesReadAsTheirBinding() {
+    eval("(setq foo 1)")
+    val forms = readAll("(foo car :key bar) (foo car :key bar)")
+    val (a, b) = (forms(0).asInstanceOf[Cell].toArray, forms(1).asInstanceOf[Cell].toArray)
+    for (i <- 0 to 2) assertSame(a(i), b(i))
+    assertSame(eval("'car"), a(1))
+    assertNotSame(a(3), b(3))
+    assertEquals("bar", b(3).asInstanceOf[Symbol].name)
+  }
+}
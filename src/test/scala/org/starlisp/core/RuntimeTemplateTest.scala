@@ -0,0 +1,69 @@
+package org.starlisp.core
+
+import junit.framework.Assert._
+
+object RuntimeTemplateTest {
+  // bootstrapping once is enough, as the template itself is never changed
+  lazy val runtime = {
+    val runtime = Runtime.createAndBootstrap
+    val stream = runtime.inputStreamFromString(
+      "(set 'xx 42) (defun getx () (symbol-value 'xx)) (setq items (list 1 2 3))" +
+      "(defun ev? (n) (if (= n 0) t (od? (- n 1)))) (defun od? (n) (if (= n 0) nil (ev? (- n 1))))" +
+      "(defun twice (x) (* x 2)) (compile 'twice)")
+    var form = stream.read
+    while (!stream.eof) {
+      runtime.eval(form)
+      form = stream.read
+    }
+    runtime
+  }
+  lazy val template = new RuntimeTemplate(runtime)
+}
+
+class RuntimeTemplateTest extends LispTestCase {
+  import RuntimeTemplateTest.template
+
+  override def setUp() {
+    runtime = template.newRuntime
+  }
+
+  def testClonesSeeTheTemplateDefinitions() {
+    assertEval("42", "xx")
+    assertEval("(1 2 3)", "items")
+    assertEval("t", "(ev? 10)")
+  }
+
+  // a quoted name reaches the clone's binding, filled with the template's value
+  def testQuotedNamesOfTemplateDefinitions() {
+    assertEval("42", "(getx)")
+    assertEval("42", "(symbol-value 'xx)")
+  }
+
+  def testClonesDontChangeTheTemplate() {
+    eval("(setq xx 1) (rplaca items 'changed)")
+    assertEval("(changed 2 3)", "items")
+    assertEval("42", "xx", template.newRuntime)
+    assertEval("(1 2 3)", "items", template.newRuntime)
+  }
+
+  def testCompiledProceduresAreCompiledAgain() {
+    val twice = eval("twice")
+    assertTrue(twice.isInstanceOf[CompiledProcedure])
+    assertNotSame(twice, eval("twice", template.newRuntime))
+    assertSame(runtime, twice.asInstanceOf[CompiledProcedure].runtime)
+    assertEval("8", "(twice 4)")
+  }
+
+  def testResetRestoresTheTemplateValues() {
+    eval("(rplaca items 'changed) (setq xx 1) (defun twice (x) x) (setq mine 3)")
+    runtime.reset()
+    assertEval("(1 2 3)", "items")
+    assertEval("42", "(getx)")
+    assertEval("8", "(twice 4)")
+    assertError("mine", "mine")
+  }
+
+  private def assertEval(expected: String, source: String, in: Runtime) {
+    assertEquals(source, expected, show(source, in))
+  }
+}
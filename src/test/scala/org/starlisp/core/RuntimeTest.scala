@@ -0,0 +1,52 @@
+package org.starlisp.core
+
+import junit.framework.Assert._
+
+class RuntimeTest extends LispTestCase {
+
+  def testRuntimesDontShareGlobals() {
+    val other = Runtime.createAndBootstrap
+    eval("(setq shared 1) (defun f () 'mine)")
+    eval("(setq shared 2) (defun f () 'other)", other)
+    assertEquals("(1 mine)", show("(list shared (f))"))
+    assertEquals("(2 other)", show("(list shared (f))", other))
+  }
+
+  def testRuntimesHaveTheirOwnStarLispMachine() {
+    val other = RuntimeTemplate.bootstrapped.newRuntime
+    eval("(*cold-boot 10)")
+    eval("(*cold-boot 20)", other)
+    assertEquals("45", show("(*sum (self-address!!))"))
+    assertEquals("190", show("(*sum (self-address!!))", other))
+  }
+
+  // runtimes evaluating on threads of their own, redefining the same names all along
+  def testRuntimesEvaluateConcurrently() {
+    val runtimes = Array.fill(4)(RuntimeTemplate.bootstrapped.newRuntime)
+    @volatile var failure: Throwable = null
+    val threads = runtimes.zipWithIndex.map { case (r, i) =>
+      new Thread(new Runnable {
+        def run() {
+          try {
+            for (j <- 1 to 200) {
+              eval("(defun id () " + i + ") (setq n " + j + ")", r)
+              assertEquals("(" + i + " " + j + ")", show("(list (id) n)", r))
+            }
+          } catch {
+            case e: Throwable => failure = e
+          }
+        }
+      })
+    }
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    if (failure ne null) throw failure
+  }
+
+  def testResetForgetsDefinitions() {
+    eval("(setq mine 1) (defun car (x) 'redefined)")
+    runtime.reset()
+    assertError("mine", "mine")
+    assertEval("1", "(car '(1 2))")
+  }
+}
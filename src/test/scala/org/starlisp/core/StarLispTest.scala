@@ -0,0 +1,115 @@
+package org.starlisp.core
+
+import junit.framework.Assert._
+
+class StarLispTest extends LispTestCase {
+
+  // enough processors to be split into chunks, and not a multiple of 64
+  private val n = Parallel.grain * 6 + 3
+
+  override def setUp() {
+    super.setUp()
+    assertTrue(n > Parallel.chunkSize(n))
+    eval("(*cold-boot " + n + ")")
+  }
+
+  def testPvarsHoldAValuePerProcessor() {
+    assertEval(String.valueOf(n), "(pref (+!! (self-address!!) (!! 1)) " + (n - 1) + ")")
+    assertEval("2.5", "(pref (!! 2.5) " + (n - 1) + ")")
+    assertEval("7", "(pref (-!! (*!! (self-address!!) (!! 2)) (self-address!!) (!! 3)) 10)")
+  }
+
+  def testDefvarsAreInitializedByEveryColdBoot() {
+    eval("(*defvar p (!! 5))")
+    eval("(*set p (*!! (self-address!!) (!! 2)))")
+    assertEval(String.valueOf(2 * (n - 1)), "(pref p " + (n - 1) + ")")
+    eval("(*cold-boot " + n + ")")
+    assertEval("5", "(pref p " + (n - 1) + ")")
+  }
+
+  def testReductions() {
+    assertEval(String.valueOf(n.toLong * (n - 1) / 2), "(*sum (self-address!!))")
+    assertEval(String.valueOf(n - 1), "(*max (self-address!!))")
+    assertEval("5", "(*min (+!! (self-address!!) (!! 5)))")
+    assertEval(String.valueOf(Integer.highestOneBit(n - 1) * 2 - 1), "(*logior (self-address!!))")
+    assertEval("t", "(*and (=!! (!! 1) (!! 1)))")
+    assertEval("nil", "(*and (=!! (self-address!!) (!! 0)))")
+    assertEval("t", "(*or (=!! (self-address!!) (!! " + (n - 1) + ")))")
+  }
+
+  def testScans() {
+    assertEval(String.valueOf(n), "(pref (scan!! (!! 1) '+!!) " + (n - 1) + ")")
+    assertEval(String.valueOf(n - 1), "(pref (scan!! (!! 1) '+!! :include-self nil) " + (n - 1) + ")")
+    assertEval("2.5", "(pref (scan!! (!! 2.5) 'max!!) " + (n - 1) + ")")
+    assertEval("0", "(pref (scan!! (self-address!!) 'min!!) " + (n - 1) + ")")
+  }
+
+  // a segment starts at each processor where the segment pvar is true
+  def testSegmentedScans() {
+    val start = n / 2
+    eval("(setq s (scan!! (!! 1) '+!! :segment-pvar (=!! (self-address!!) (!! " + start + "))))")
+    assertEval(String.valueOf(start), "(pref s " + (start - 1) + ")")
+    assertEval("1", "(pref s " + start + ")")
+    assertEval(String.valueOf(n - start), "(pref s " + (n - 1) + ")")
+  }
+
+  def testWhenSelectsProcessors() {
+    assertEval(String.valueOf(n), "(*when (=!! (!! 1) (!! 1)) (*sum (!! 1)))")
+    assertEval("1", "(*when (=!! (self-address!!) (!! " + (n - 1) + ")) (*sum (!! 1)))")
+    assertEval(String.valueOf(n), "(*when (=!! (self-address!!) (!! 7)) (*all (*sum (!! 1))))")
+    assertEval("0", "(*when (=!! (self-address!!) (!! 7)) (*when (=!! (self-address!!) (!! 8)) (*sum (!! 1))))")
+  }
+
+  def testIfSelectsBothWays() {
+    eval("(setq p (!! 0))")
+    eval("(*if (=!! (self-address!!) (!! 7)) (*set p (!! 1)) (*set p (!! 2)))")
+    assertEval(String.valueOf(1 + 2L * (n - 1)), "(*sum p)")
+    eval("(setq q (if!! (=!! (self-address!!) (!! 7)) (!! 10) (!! 20)))")
+    assertEval("(20 10 20)", "(list (pref q 6) (pref q 7) (pref q " + (n - 1) + "))")
+  }
+
+  def testNewsWrapsAroundTheGrid() {
+    assertEval("0", "(pref (news!! (self-address!!) 1) " + (n - 1) + ")")
+    assertEval(String.valueOf(n - 1), "(pref (news!! (self-address!!) -1) 0)")
+    assertEval("12", "(pref (news!! (self-address!!) 5) 7)")
+  }
+
+  def testNewsOnTwoDimensionalGrids() {
+    eval("(def-vp-set g '(400 300))")
+    assertEval("(400 300 803)", "(*with-vp-set g (list (dimension-size 0) (dimension-size 1) (grid 3 2)))")
+    assertEval("(0 400 -1)", "(*with-vp-set g (list (pref (news!! (self-address!!) 1 0) 399) " +
+      "(pref (news!! (self-address!!) 0 1) 0) (pref (news-border!! (self-address!!) (!! -1) 1 0) 399)))")
+    assertEval(String.valueOf(400L * (299 * 300 / 2)), "(*with-vp-set g (*sum (self-address-grid!! 1)))")
+  }
+
+  def testNewsSendsToNeighbors() {
+    eval("(setq d (!! -1))")
+    eval("(*news (self-address!!) d 1)")
+    assertEval("(" + (n - 1) + " 0 9)", "(list (pref d 0) (pref d 1) (pref d 10))")
+  }
+
+  private def reversed = "(-!! (!! " + (n - 1) + ") (self-address!!))"
+
+  def testPrefFetchesFromAddressedProcessors() {
+    eval("(setq r (pref!! (self-address!!) " + reversed + "))")
+    assertEval("(" + (n - 1) + " 0)", "(list (pref r 0) (pref r " + (n - 1) + "))")
+  }
+
+  def testPsetCombinesCollisions() {
+    eval("(setq d (!! 0))")
+    eval("(*pset :add (!! 1) d (!! 0))")
+    assertEval("(" + n + " 0)", "(list (pref d 0) (pref d 1))")
+    eval("(*pset :max (self-address!!) d (!! 3))")
+    assertEval(String.valueOf(n - 1), "(pref d 3)")
+    eval("(*pset :overwrite (self-address!!) d " + reversed + ")")
+    assertEval("(" + (n - 1) + " 0)", "(list (pref d 0) (pref d " + (n - 1) + "))")
+    assertEval(String.valueOf(n.toLong * (n - 1) / 2), "(*sum d)")
+  }
+
+  // only the active processors send
+  def testPsetWithinWhen() {
+    eval("(setq d (!! 0))")
+    eval("(*when (=!! (self-address!!) (!! 7)) (*pset :add (!! 1) d (!! 0)))")
+    assertEval("1", "(*sum d)")
+  }
+}
@@ -0,0 +1,34 @@
+package org.starlisp.core
+
+import junit.framework.Assert._
+
+class StringTest extends LispTestCase {
+
+  def testMakeAndReadStrings() {
+    assertEval("\"aaa\"", "(make-string 3 #\\a)")
+    assertEval("3", "(length \"abc\")")
+    assertEval("#\\b", "(aref \"abc\" 1)")
+    assertEval("t", "(equal? \"ab\" \"ab\")")
+  }
+
+  // the text seen after an aset is the changed one, each time it's changed
+  def testAsetChangesTheText() {
+    eval("(setq s (make-string 3 #\\a))")
+    assertEval("#\\a", "(aset s 1 #\\b)")
+    assertEval("\"aba\"", "s")
+    assertEval("t", "(equal? s \"aba\")")
+    eval("(aset s 2 #\\c)")
+    assertEval("\"abc\"", "s")
+    assertEquals("abc", eval("s").asInstanceOf[LispString].toJavaString)
+    assertEval("nil", "(equal? s \"aba\")")
+  }
+
+  def testStringsDontShareTheirCharacters() {
+    eval("(setq s (make-string 2 #\\x)) (setq u (make-string 2 #\\x)) (aset s 0 #\\y)")
+    assertEval("(\"yx\" \"xx\")", "(list s u)")
+  }
+
+  def testOnlyCharsGoInStrings() {
+    assertError("Only Char", "(aset (make-string 2 #\\x) 0 1)")
+  }
+}